@@ -0,0 +1,59 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium.simulator;
+
+import java.util.Arrays;
+
+/**
+ * Collects latencies in nanoseconds and reports percentiles of them.
+ */
+final class LatencyRecorder {
+	private long[] values = new long[1024];
+	private int count = 0;
+
+	synchronized void record(long nanos) {
+		if (count == values.length) {
+			values = Arrays.copyOf(values, count * 2);
+		}
+		values[count++] = nanos;
+	}
+
+	synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the latency in milliseconds below which the given fraction of the latencies lies, or 0 when nothing
+	 * was recorded
+	 */
+	synchronized double percentileMillis(double fraction) {
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(values, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(fraction * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))] / 1e6;
+	}
+
+	synchronized double maxMillis() {
+		long max = 0;
+		for (int i = 0; i < count; i++) {
+			max = Math.max(max, values[i]);
+		}
+		return max / 1e6;
+	}
+}
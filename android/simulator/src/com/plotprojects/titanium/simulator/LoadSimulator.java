@@ -0,0 +1,167 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium.simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.plotprojects.retail.android.FilterableNotification;
+import com.plotprojects.retail.android.Geotrigger;
+import com.plotprojects.titanium.PlotAndroidModule;
+
+/**
+ * Generates geofence storms and reports how the notification filter and geotrigger handler pipelines cope with
+ * them. See the readme in the simulator directory for the options.
+ */
+public final class LoadSimulator {
+	private static final String[] TRIGGERS = { "exit", "dwelling" };
+
+	private final Options options;
+	private final Random random;
+
+	private LoadSimulator(Options options) {
+		this.options = options;
+		this.random = new Random(options.getLong("seed"));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = Options.parse(args);
+		if (options == null) {
+			System.err.println(Options.usage());
+			System.exit(1);
+		}
+		new LoadSimulator(options).run();
+	}
+
+	private void run() throws Exception {
+		PlotAndroidModule module = new PlotAndroidModule();
+		module.initPlot(options.getConfiguration());
+
+		final Random scriptRandom = new Random(options.getLong("seed") + 1);
+		Pipeline.ScriptBehaviour behaviour = new Pipeline.ScriptBehaviour() {
+			public long getLatencyMillis(boolean geotriggers) {
+				long latency = options.getLong("scriptLatency");
+				long jitter = options.getLong("scriptJitter");
+				return Math.max(0, latency + (jitter > 0 ? (long) (scriptRandom.nextGaussian() * jitter) : 0));
+			}
+
+			public boolean fails(boolean geotriggers) {
+				return scriptRandom.nextDouble() < options.getDouble("scriptFailureRate");
+			}
+
+			public Object[] select(boolean geotriggers, Object[] items) {
+				List<Object> result = new ArrayList<Object>();
+				for (Object item : items) {
+					if (scriptRandom.nextDouble() < options.getDouble("passRate")) {
+						result.add(item);
+					}
+				}
+				return result.toArray();
+			}
+		};
+		Pipeline pipeline = new Pipeline(module, behaviour, null, options.getInt("chunkSize"), options.getBoolean("lazy"));
+
+		PipelineMonitor monitor = new PipelineMonitor(pipeline);
+		monitor.start();
+
+		generate(pipeline);
+		boolean idle = pipeline.awaitIdle(options.getLong("drainTimeout") * 1000);
+		monitor.stop();
+		pipeline.shutdown();
+
+		monitor.report("Load simulation: " + options, idle);
+	}
+
+	/**
+	 * Submits batches with exponentially distributed inter-arrival times, plus the configured bursts, until the
+	 * duration has passed.
+	 */
+	private void generate(Pipeline pipeline) throws InterruptedException {
+		long start = System.nanoTime();
+		long end = start + options.getLong("duration") * 1000000000L;
+		long nextNotification = start + nextInterval(options.getDouble("notificationRate"));
+		long nextGeotrigger = start + nextInterval(options.getDouble("geotriggerRate"));
+		long burstInterval = options.getLong("burstInterval") * 1000000000L;
+		long nextBurst = burstInterval > 0 ? start + burstInterval : Long.MAX_VALUE;
+
+		while (true) {
+			long next = Math.min(nextBurst, Math.min(nextNotification, nextGeotrigger));
+			if (next >= end) {
+				break;
+			}
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			}
+			if (next == nextBurst) {
+				for (int i = 0; i < options.getInt("burstSize"); i++) {
+					pipeline.submitNotifications(createNotifications());
+					pipeline.submitGeotriggers(createGeotriggers());
+				}
+				nextBurst += burstInterval;
+			} else if (next == nextNotification) {
+				pipeline.submitNotifications(createNotifications());
+				nextNotification += nextInterval(options.getDouble("notificationRate"));
+			} else {
+				pipeline.submitGeotriggers(createGeotriggers());
+				nextGeotrigger += nextInterval(options.getDouble("geotriggerRate"));
+			}
+		}
+	}
+
+	private long nextInterval(double ratePerSecond) {
+		if (ratePerSecond <= 0) {
+			return Long.MAX_VALUE / 2;
+		}
+		return (long) (-Math.log(1 - random.nextDouble()) / ratePerSecond * 1e9);
+	}
+
+	private int nextBatchSize() {
+		int min = options.getInt("minBatchSize");
+		int max = Math.max(min, options.getInt("maxBatchSize"));
+		return min + random.nextInt(max - min + 1);
+	}
+
+	private String nextTrigger() {
+		if (random.nextDouble() < options.getDouble("enterFraction")) {
+			return "enter";
+		}
+		return TRIGGERS[random.nextInt(TRIGGERS.length)];
+	}
+
+	private List<FilterableNotification> createNotifications() {
+		int size = nextBatchSize();
+		List<FilterableNotification> result = new ArrayList<FilterableNotification>(size);
+		for (int i = 0; i < size; i++) {
+			String id = "n" + random.nextInt(options.getInt("distinctIds"));
+			result.add(new FilterableNotification(id, "Message " + id, "https://example.com/" + id, nextTrigger(),
+					52.0 + random.nextDouble(), 4.0 + random.nextDouble(), 0, 200, "landingPage"));
+		}
+		return result;
+	}
+
+	private List<Geotrigger> createGeotriggers() {
+		int size = nextBatchSize();
+		List<Geotrigger> result = new ArrayList<Geotrigger>(size);
+		for (int i = 0; i < size; i++) {
+			String id = "g" + random.nextInt(options.getInt("distinctIds"));
+			result.add(new Geotrigger(id, "Geotrigger " + id, "data " + id, nextTrigger(),
+					52.0 + random.nextDouble(), 4.0 + random.nextDouble(), 0, 200));
+		}
+		return result;
+	}
+}
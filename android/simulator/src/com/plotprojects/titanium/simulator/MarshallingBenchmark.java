@@ -0,0 +1,116 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium.simulator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import com.plotprojects.retail.android.FilterableNotification;
+import com.plotprojects.retail.android.Geotrigger;
+import com.plotprojects.retail.android.Plot;
+import com.plotprojects.retail.android.SentGeotrigger;
+import com.plotprojects.retail.android.SentNotification;
+import com.plotprojects.titanium.PlotAndroidModule;
+
+/**
+ * Measures how long converting the sent notifications and geotriggers to JavaScript objects takes with and without
+ * parallel conversion, for a range of history sizes. The number of cores can be limited with the JVM option
+ * <code>-XX:ActiveProcessorCount</code>. See the readme in the simulator directory for the options.
+ */
+public final class MarshallingBenchmark {
+	private static final String[] EXTRA_OPTIONS = { "sizes=16,64,128,256,512,1024,4096", "iterations=200", "warmup=50" };
+
+	private final Options options;
+	private final PlotAndroidModule module = new PlotAndroidModule();
+
+	private MarshallingBenchmark(Options options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) {
+		Options options = Options.parse(args, EXTRA_OPTIONS);
+		if (options == null) {
+			System.err.println(Options.usage(EXTRA_OPTIONS));
+			System.exit(1);
+		}
+		new MarshallingBenchmark(options).run();
+	}
+
+	private void run() {
+		HashMap<String, Object> configuration = options.getConfiguration();
+		module.initPlot(configuration);
+
+		System.out.println(String.format("Marshalling benchmark: %d cores, %s", Runtime.getRuntime().availableProcessors(), options));
+		System.out.println();
+		System.out.println(String.format("%-14s %7s %12s %12s %8s", "history", "size", "serial us", "parallel us", "speedup"));
+		for (String size : options.getString("sizes").split(",")) {
+			fillHistory(Integer.parseInt(size.trim()));
+			printRow("notifications", Integer.parseInt(size.trim()), measure(false, 0), measure(false, 1));
+			printRow("geotriggers", Integer.parseInt(size.trim()), measure(true, 0), measure(true, 1));
+		}
+	}
+
+	private void fillHistory(int size) {
+		Plot.clearSentNotifications();
+		Plot.clearSentGeotriggers();
+		Random random = new Random(options.getLong("seed"));
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < size; i++) {
+			String id = "n" + i;
+			FilterableNotification notification = new FilterableNotification(id, "Message " + id, "https://example.com/" + id,
+					"enter", 52.0 + random.nextDouble(), 4.0 + random.nextDouble(), 0, 200, "landingPage");
+			Plot.addSentNotification(new SentNotification(notification, "m" + i, now - i * 1000L, random.nextBoolean() ? now : 0));
+			Geotrigger geotrigger = new Geotrigger("g" + i, "Geotrigger " + i, "data " + i, "enter",
+					52.0 + random.nextDouble(), 4.0 + random.nextDouble(), 0, 200);
+			Plot.addSentGeotrigger(new SentGeotrigger(geotrigger, "m" + i, now - i * 1000L, random.nextBoolean() ? now : 0));
+		}
+	}
+
+	/**
+	 * @param threshold the parallel marshalling threshold, 0 converts serially
+	 * @return the median time of a conversion in microseconds
+	 */
+	private double measure(boolean geotriggers, int threshold) {
+		HashMap<String, Object> configuration = new HashMap<String, Object>(options.getConfiguration());
+		configuration.put("parallelMarshallingThreshold", threshold);
+		module.initPlot(configuration);
+
+		int warmup = options.getInt("warmup");
+		int iterations = options.getInt("iterations");
+		long[] times = new long[iterations];
+		int checksum = 0;
+		for (int i = -warmup; i < iterations; i++) {
+			long start = System.nanoTime();
+			HashMap[] result = geotriggers ? module.getSentGeotriggers() : module.getSentNotifications();
+			long time = System.nanoTime() - start;
+			checksum += result.length;
+			if (i >= 0) {
+				times[i] = time;
+			}
+		}
+		if (checksum < 0) {
+			// keeps the results from being optimized away
+			System.out.println(checksum);
+		}
+		Arrays.sort(times);
+		return times[times.length / 2] / 1000.0;
+	}
+
+	private static void printRow(String history, int size, double serial, double parallel) {
+		System.out.println(String.format("%-14s %7d %12.1f %12.1f %7.2fx", history, size, serial, parallel, serial / parallel));
+	}
+}
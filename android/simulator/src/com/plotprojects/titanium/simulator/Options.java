@@ -0,0 +1,157 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium.simulator;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Command line options of the simulator tools, given as <code>--name value</code>. Options passed with
+ * <code>--config key=value</code> are added to the configuration passed to initPlot.
+ */
+final class Options {
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+
+	static {
+		DEFAULTS.put("duration", "30");
+		DEFAULTS.put("notificationRate", "5");
+		DEFAULTS.put("geotriggerRate", "2");
+		DEFAULTS.put("burstInterval", "0");
+		DEFAULTS.put("burstSize", "20");
+		DEFAULTS.put("minBatchSize", "1");
+		DEFAULTS.put("maxBatchSize", "20");
+		DEFAULTS.put("enterFraction", "0.5");
+		DEFAULTS.put("distinctIds", "1000");
+		DEFAULTS.put("scriptLatency", "50");
+		DEFAULTS.put("scriptJitter", "25");
+		DEFAULTS.put("scriptFailureRate", "0");
+		DEFAULTS.put("passRate", "0.5");
+		DEFAULTS.put("chunkSize", "0");
+		DEFAULTS.put("lazy", "false");
+		DEFAULTS.put("drainTimeout", "60");
+		DEFAULTS.put("seed", "42");
+	}
+
+	private final Map<String, String> values = new LinkedHashMap<String, String>(DEFAULTS);
+	private final HashMap<String, Object> configuration = new HashMap<String, Object>();
+
+	private Options() {
+		configuration.put("notificationFilterEnabled", true);
+		configuration.put("geotriggerHandlerEnabled", true);
+	}
+
+	/**
+	 * Parses the arguments. Options in addition to the default options are given as <code>name=default</code>,
+	 * an empty default means the option has no value unless it is given.
+	 *
+	 * @return the options, or null when the arguments aren't valid
+	 */
+	static Options parse(String[] args, String... extraOptions) {
+		Options result = new Options();
+		for (String option : extraOptions) {
+			int separator = option.indexOf('=');
+			String value = option.substring(separator + 1);
+			result.values.put(option.substring(0, separator), value.length() > 0 ? value : null);
+		}
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--") || i + 1 >= args.length) {
+				return null;
+			}
+			String name = args[i].substring(2);
+			String value = args[++i];
+			if (name.equals("config")) {
+				int separator = value.indexOf('=');
+				if (separator <= 0) {
+					return null;
+				}
+				result.configuration.put(value.substring(0, separator), parseValue(value.substring(separator + 1)));
+			} else if (result.values.containsKey(name)) {
+				result.values.put(name, value);
+			} else {
+				return null;
+			}
+		}
+		return result;
+	}
+
+	static String usage(String... extraOptions) {
+		StringBuilder result = new StringBuilder("Options (with their defaults):\n");
+		for (String option : extraOptions) {
+			int separator = option.indexOf('=');
+			result.append(String.format("  --%-20s %s%n", option.substring(0, separator), option.substring(separator + 1)));
+		}
+		for (Map.Entry<String, String> option : DEFAULTS.entrySet()) {
+			result.append(String.format("  --%-20s %s%n", option.getKey(), option.getValue()));
+		}
+		result.append("  --config key=value     added to the configuration passed to initPlot\n");
+		return result.toString();
+	}
+
+	/**
+	 * Values in the configuration are passed as boolean, integer or double when they look like one.
+	 */
+	private static Object parseValue(String value) {
+		if (value.equals("true") || value.equals("false")) {
+			return Boolean.valueOf(value);
+		}
+		try {
+			return Integer.valueOf(value);
+		} catch (NumberFormatException e) {
+			// not an integer
+		}
+		try {
+			return Double.valueOf(value);
+		} catch (NumberFormatException e) {
+			return value;
+		}
+	}
+
+	String getString(String name) {
+		return values.get(name);
+	}
+
+	long getLong(String name) {
+		return Long.parseLong(values.get(name));
+	}
+
+	int getInt(String name) {
+		return Integer.parseInt(values.get(name));
+	}
+
+	double getDouble(String name) {
+		return Double.parseDouble(values.get(name));
+	}
+
+	boolean getBoolean(String name) {
+		return Boolean.parseBoolean(values.get(name));
+	}
+
+	HashMap<String, Object> getConfiguration() {
+		return configuration;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		for (Map.Entry<String, String> option : values.entrySet()) {
+			if (option.getValue() != null) {
+				result.append(option.getKey()).append('=').append(option.getValue()).append(' ');
+			}
+		}
+		return result.append("config=").append(configuration).toString();
+	}
+}
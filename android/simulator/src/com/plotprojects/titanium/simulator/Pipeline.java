@@ -0,0 +1,343 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium.simulator;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import ti.modules.titanium.android.TiJSService;
+
+import com.plotprojects.retail.android.FilterableNotification;
+import com.plotprojects.retail.android.Geotrigger;
+import com.plotprojects.retail.android.GeotriggerHandlerUtil;
+import com.plotprojects.retail.android.NotificationFilterUtil;
+import com.plotprojects.titanium.FilterableNotificationProxy;
+import com.plotprojects.titanium.GeotriggerHandlerService;
+import com.plotprojects.titanium.GeotriggerProxy;
+import com.plotprojects.titanium.NotificationFilterService;
+import com.plotprojects.titanium.PlotAndroidModule;
+
+/**
+ * Drives batches through the services, the batch registries and the pop and send methods of the module, the way
+ * Plot and the scripts would on a device.
+ *
+ * Batches are delivered to the services on the simulated main thread. Scripts are run one at a time on a separate
+ * thread, like the scripts of Titanium share a single JavaScript thread. The script behaviour decides how long a
+ * script takes, whether it fails and which items it passes on.
+ */
+final class Pipeline {
+	private static final String FILTER_SCRIPT = "plotfilter.js";
+	private static final String GEOTRIGGER_SCRIPT = "plotgeotriggerhandler.js";
+
+	/**
+	 * The behaviour of the simulated scripts. Called on the script thread.
+	 */
+	interface ScriptBehaviour {
+		long getLatencyMillis(boolean geotriggers);
+
+		boolean fails(boolean geotriggers);
+
+		/**
+		 * @return the popped items that are passed on by the script
+		 */
+		Object[] select(boolean geotriggers, Object[] items);
+	}
+
+	/**
+	 * Receives the result of every batch.
+	 */
+	interface DecisionListener {
+		void onNotificationsSent(List<FilterableNotification> notifications, List<FilterableNotification> sent);
+
+		void onGeotriggersHandled(List<Geotrigger> geotriggers, List<Geotrigger> handled);
+	}
+
+	private final PlotAndroidModule module;
+	private final ScriptBehaviour behaviour;
+	private final DecisionListener listener;
+	private final int chunkSize;
+	private final HashMap<String, Object> popOptions = new HashMap<String, Object>();
+	private final Handler mainHandler = new Handler();
+	private final ExecutorService scriptExecutor;
+	private final NotificationFilterService filterService = new NotificationFilterService();
+	private final GeotriggerHandlerService geotriggerService = new GeotriggerHandlerService();
+
+	private final AtomicInteger startId = new AtomicInteger();
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final AtomicLong notificationBatchesSubmitted = new AtomicLong();
+	private final AtomicLong geotriggerBatchesSubmitted = new AtomicLong();
+	private final AtomicLong scriptFailures = new AtomicLong();
+	private final LatencyRecorder notificationLatencies = new LatencyRecorder();
+	private final LatencyRecorder geotriggerLatencies = new LatencyRecorder();
+
+	Pipeline(PlotAndroidModule module, ScriptBehaviour behaviour, DecisionListener listener, int chunkSize, boolean lazy) {
+		this.module = module;
+		this.behaviour = behaviour;
+		this.listener = listener;
+		this.chunkSize = chunkSize;
+		popOptions.put("lazy", lazy);
+		scriptExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread result = new Thread(r, "kroll");
+				result.setDaemon(true);
+				return result;
+			}
+		});
+		TiJSService.setScriptRunner(new TiJSService.ScriptRunner() {
+			public void run(String url, TiJSService service, Intent intent) {
+				startScript(url);
+			}
+		});
+		Context.setServiceStarter(new Context.ServiceStarter() {
+			public void start(Intent intent) {
+				startService(intent);
+			}
+		});
+	}
+
+	void submitNotifications(List<FilterableNotification> notifications) {
+		notificationBatchesSubmitted.incrementAndGet();
+		final Intent intent = new Intent();
+		intent.putExtra(NotificationFilterUtil.EXTRA_BATCH, new SimulatedNotificationBatch(notifications));
+		deliver(new Runnable() {
+			public void run() {
+				filterService.onStartCommand(intent, 0, startId.incrementAndGet());
+			}
+		});
+	}
+
+	void submitGeotriggers(List<Geotrigger> geotriggers) {
+		geotriggerBatchesSubmitted.incrementAndGet();
+		final Intent intent = new Intent();
+		intent.putExtra(GeotriggerHandlerUtil.EXTRA_BATCH, new SimulatedGeotriggerBatch(geotriggers));
+		deliver(new Runnable() {
+			public void run() {
+				geotriggerService.onStartCommand(intent, 0, startId.incrementAndGet());
+			}
+		});
+	}
+
+	/**
+	 * Delivers an intent a service started, such as the geotrigger handler requesting a run of its script.
+	 */
+	private void startService(final Intent intent) {
+		String className = intent.getComponent() == null ? null : intent.getComponent().getClassName();
+		final TiJSService service;
+		if (GeotriggerHandlerService.class.getName().equals(className)) {
+			service = geotriggerService;
+		} else if (NotificationFilterService.class.getName().equals(className)) {
+			service = filterService;
+		} else {
+			return;
+		}
+		deliver(new Runnable() {
+			public void run() {
+				service.onStartCommand(intent, 0, startId.incrementAndGet());
+			}
+		});
+	}
+
+	private void deliver(final Runnable runnable) {
+		outstanding.incrementAndGet();
+		mainHandler.post(new Runnable() {
+			public void run() {
+				try {
+					runnable.run();
+				} finally {
+					outstanding.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	private void startScript(final String url) {
+		outstanding.incrementAndGet();
+		scriptExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					if (FILTER_SCRIPT.equals(url)) {
+						runScript(false);
+					} else if (GEOTRIGGER_SCRIPT.equals(url)) {
+						runScript(true);
+					}
+				} catch (SimulatedScriptFailure e) {
+					scriptFailures.incrementAndGet();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					outstanding.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	private void runScript(boolean geotriggers) throws InterruptedException {
+		Thread.sleep(behaviour.getLatencyMillis(geotriggers));
+		String idField = geotriggers ? "handlerId" : "filterId";
+		String itemsField = geotriggers ? "geotriggers" : "notifications";
+
+		if (chunkSize <= 0) {
+			HashMap batch = geotriggers ? module.popGeotriggers(popOptions) : module.popFilterableNotifications(popOptions);
+			if (behaviour.fails(geotriggers)) {
+				throw new SimulatedScriptFailure();
+			}
+			HashMap<String, Object> result = new HashMap<String, Object>();
+			result.put(idField, batch.get(idField));
+			result.put(itemsField, behaviour.select(geotriggers, (Object[]) batch.get(itemsField)));
+			if (geotriggers) {
+				module.markGeotriggersHandled(result);
+			} else {
+				module.sendNotifications(result);
+			}
+			return;
+		}
+
+		String id = null;
+		while (true) {
+			HashMap chunk = geotriggers ? module.popGeotriggersChunk(id, chunkSize, popOptions) : module.popFilterableNotificationsChunk(id, chunkSize, popOptions);
+			if (chunk == null) {
+				return;
+			}
+			if (behaviour.fails(geotriggers)) {
+				throw new SimulatedScriptFailure();
+			}
+			id = (String) chunk.get(idField);
+			HashMap<String, Object> result = new HashMap<String, Object>();
+			result.put(idField, id);
+			result.put("chunkId", chunk.get("chunkId"));
+			result.put(itemsField, behaviour.select(geotriggers, (Object[]) chunk.get(itemsField)));
+			boolean sent = geotriggers ? module.submitGeotriggersChunk(result) : module.submitNotificationsChunk(result);
+			if (sent || (Integer) chunk.get("remaining") == 0) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the identifier of a popped notification or geotrigger
+	 */
+	static String getId(Object item) {
+		if (item instanceof FilterableNotificationProxy) {
+			return ((FilterableNotificationProxy) item).getIdentifier();
+		}
+		if (item instanceof GeotriggerProxy) {
+			return ((GeotriggerProxy) item).getIdentifier();
+		}
+		return (String) ((HashMap) item).get("identifier");
+	}
+
+	/**
+	 * @return whether nothing is being delivered, waiting or running
+	 */
+	boolean isIdle() {
+		if (outstanding.get() > 0) {
+			return false;
+		}
+		HashMap metrics = module.getMetrics();
+		return ((Number) metrics.get("notificationBatchesPending")).intValue() == 0
+				&& ((Number) metrics.get("geotriggerBatchesPending")).intValue() == 0
+				&& ((Number) metrics.get("geotriggerScriptsWaiting")).intValue() == 0
+				&& outstanding.get() == 0;
+	}
+
+	/**
+	 * Waits until the pipeline is idle, or the timeout passed.
+	 *
+	 * @return whether the pipeline became idle
+	 */
+	boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeoutMillis;
+		while (System.currentTimeMillis() < end) {
+			if (isIdle()) {
+				return true;
+			}
+			Thread.sleep(10);
+		}
+		return isIdle();
+	}
+
+	void shutdown() {
+		scriptExecutor.shutdownNow();
+	}
+
+	PlotAndroidModule getModule() {
+		return module;
+	}
+
+	long getNotificationBatchesSubmitted() {
+		return notificationBatchesSubmitted.get();
+	}
+
+	long getGeotriggerBatchesSubmitted() {
+		return geotriggerBatchesSubmitted.get();
+	}
+
+	long getScriptFailures() {
+		return scriptFailures.get();
+	}
+
+	LatencyRecorder getNotificationLatencies() {
+		return notificationLatencies;
+	}
+
+	LatencyRecorder getGeotriggerLatencies() {
+		return geotriggerLatencies;
+	}
+
+	@SuppressWarnings("serial")
+	private static final class SimulatedScriptFailure extends RuntimeException {
+	}
+
+	private final class SimulatedNotificationBatch extends NotificationFilterUtil.Batch {
+		private final long arrival = System.nanoTime();
+
+		SimulatedNotificationBatch(List<FilterableNotification> notifications) {
+			super(notifications);
+		}
+
+		@Override
+		public void sendNotifications(List<FilterableNotification> notifications) {
+			notificationLatencies.record(System.nanoTime() - arrival);
+			if (listener != null) {
+				listener.onNotificationsSent(getNotifications(), notifications);
+			}
+		}
+	}
+
+	private final class SimulatedGeotriggerBatch extends GeotriggerHandlerUtil.Batch {
+		private final long arrival = System.nanoTime();
+
+		SimulatedGeotriggerBatch(List<Geotrigger> geotriggers) {
+			super(geotriggers);
+		}
+
+		@Override
+		public void markGeotriggersHandled(List<Geotrigger> geotriggers) {
+			geotriggerLatencies.record(System.nanoTime() - arrival);
+			if (listener != null) {
+				listener.onGeotriggersHandled(getGeotriggers(), geotriggers);
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium.simulator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Samples the heap usage and queue depth of a pipeline while it runs, and prints the report at the end.
+ */
+final class PipelineMonitor {
+	private final Pipeline pipeline;
+	private long baselineHeap;
+	private volatile long peakHeap = 0;
+	private volatile int peakNotificationDepth = 0;
+	private volatile int peakGeotriggerDepth = 0;
+	private Thread sampler;
+
+	PipelineMonitor(Pipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	void start() {
+		System.gc();
+		baselineHeap = usedHeap();
+		sampler = new Thread(new Runnable() {
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					sample();
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "sampler");
+		sampler.setDaemon(true);
+		sampler.start();
+	}
+
+	void stop() throws InterruptedException {
+		sampler.interrupt();
+		sampler.join();
+	}
+
+	private void sample() {
+		peakHeap = Math.max(peakHeap, usedHeap());
+		HashMap metrics = pipeline.getModule().getMetrics();
+		peakNotificationDepth = Math.max(peakNotificationDepth,
+				intValue(metrics, "notificationBatchesPending") + intValue(metrics, "notificationBatchesActive"));
+		peakGeotriggerDepth = Math.max(peakGeotriggerDepth,
+				intValue(metrics, "geotriggerBatchesPending") + intValue(metrics, "geotriggerBatchesActive"));
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static int intValue(Map metrics, String key) {
+		Object value = metrics.get(key);
+		return value instanceof Number ? ((Number) value).intValue() : 0;
+	}
+
+	void report(String title, boolean idle) {
+		HashMap metrics = pipeline.getModule().getMetrics();
+		System.out.println(title);
+		System.out.println();
+		System.out.println(String.format("%-14s %9s %9s %9s %9s %9s %10s", "pipeline", "batches", "decided", "p50 ms", "p99 ms", "max ms", "peak depth"));
+		printRow("notifications", pipeline.getNotificationBatchesSubmitted(), pipeline.getNotificationLatencies(), peakNotificationDepth);
+		printRow("geotriggers", pipeline.getGeotriggerBatchesSubmitted(), pipeline.getGeotriggerLatencies(), peakGeotriggerDepth);
+		System.out.println();
+		System.out.println(String.format("script failures: %d", pipeline.getScriptFailures()));
+		System.out.println(String.format("peak heap: %.1f MB (%.1f MB above baseline)", peakHeap / 1048576.0, (peakHeap - baselineHeap) / 1048576.0));
+		if (!idle) {
+			System.out.println("warning: the pipeline didn't drain within the drain timeout");
+		}
+		System.out.println();
+		System.out.println("module metrics:");
+		for (Object entry : new TreeMap(metrics).entrySet()) {
+			Map.Entry metric = (Map.Entry) entry;
+			System.out.println(String.format("  %-40s %s", metric.getKey(), metric.getValue()));
+		}
+	}
+
+	private static void printRow(String name, long submitted, LatencyRecorder latencies, int peakDepth) {
+		System.out.println(String.format("%-14s %9d %9d %9.1f %9.1f %9.1f %10d", name, submitted, latencies.getCount(),
+				latencies.percentileMillis(0.5), latencies.percentileMillis(0.99), latencies.maxMillis(), peakDepth));
+	}
+}
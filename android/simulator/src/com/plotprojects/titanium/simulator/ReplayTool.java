@@ -0,0 +1,153 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium.simulator;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+
+import com.plotprojects.retail.android.FilterableNotification;
+import com.plotprojects.retail.android.Geotrigger;
+import com.plotprojects.titanium.PlotAndroidModule;
+
+/**
+ * Replays batches recorded on a device with the same timing and reports how the pipelines cope with them. The
+ * simulated script passes on the items that were passed on in the recording. See the readme in the simulator
+ * directory for the options.
+ */
+public final class ReplayTool {
+	private static final String[] EXTRA_OPTIONS = { "trace=", "speed=1" };
+
+	private final Options options;
+	private final List<TraceReader.Arrival> arrivals;
+	// the recorded decisions of every item, in order of arrival
+	private final Map<String, Queue<Boolean>> notificationDecisions = new HashMap<String, Queue<Boolean>>();
+	private final Map<String, Queue<Boolean>> geotriggerDecisions = new HashMap<String, Queue<Boolean>>();
+
+	private ReplayTool(Options options, List<TraceReader.Arrival> arrivals) {
+		this.options = options;
+		this.arrivals = arrivals;
+		for (TraceReader.Arrival arrival : arrivals) {
+			if (!arrival.hasScriptDecision()) {
+				continue;
+			}
+			if (arrival.isGeotriggers()) {
+				for (Geotrigger geotrigger : arrival.getGeotriggers()) {
+					addDecision(geotriggerDecisions, geotrigger.getId(), arrival);
+				}
+			} else {
+				for (FilterableNotification notification : arrival.getNotifications()) {
+					addDecision(notificationDecisions, notification.getId(), arrival);
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = Options.parse(args, EXTRA_OPTIONS);
+		if (options == null || options.getString("trace") == null) {
+			System.err.println(Options.usage(EXTRA_OPTIONS));
+			System.exit(1);
+		}
+		List<File> files = new ArrayList<File>();
+		for (String path : options.getString("trace").split(",")) {
+			files.add(new File(path));
+		}
+		new ReplayTool(options, TraceReader.read(files)).run();
+	}
+
+	private static void addDecision(Map<String, Queue<Boolean>> decisions, String id, TraceReader.Arrival arrival) {
+		Queue<Boolean> queue = decisions.get(id);
+		if (queue == null) {
+			queue = new ArrayDeque<Boolean>();
+			decisions.put(id, queue);
+		}
+		queue.add(arrival.getPassedIds().contains(id));
+	}
+
+	private void run() throws Exception {
+		PlotAndroidModule module = new PlotAndroidModule();
+		module.initPlot(options.getConfiguration());
+
+		final Random scriptRandom = new Random(options.getLong("seed") + 1);
+		Pipeline.ScriptBehaviour behaviour = new Pipeline.ScriptBehaviour() {
+			public long getLatencyMillis(boolean geotriggers) {
+				long latency = options.getLong("scriptLatency");
+				long jitter = options.getLong("scriptJitter");
+				return Math.max(0, latency + (jitter > 0 ? (long) (scriptRandom.nextGaussian() * jitter) : 0));
+			}
+
+			public boolean fails(boolean geotriggers) {
+				return scriptRandom.nextDouble() < options.getDouble("scriptFailureRate");
+			}
+
+			public Object[] select(boolean geotriggers, Object[] items) {
+				Map<String, Queue<Boolean>> decisions = geotriggers ? geotriggerDecisions : notificationDecisions;
+				List<Object> result = new ArrayList<Object>();
+				for (Object item : items) {
+					Queue<Boolean> queue = decisions.get(Pipeline.getId(item));
+					Boolean passed = queue != null ? queue.poll() : null;
+					if (passed == null) {
+						// no recorded decision left for this item
+						passed = scriptRandom.nextDouble() < options.getDouble("passRate");
+					}
+					if (passed) {
+						result.add(item);
+					}
+				}
+				return result.toArray();
+			}
+		};
+		Pipeline pipeline = new Pipeline(module, behaviour, null, options.getInt("chunkSize"), options.getBoolean("lazy"));
+
+		PipelineMonitor monitor = new PipelineMonitor(pipeline);
+		monitor.start();
+
+		replay(pipeline);
+		boolean idle = pipeline.awaitIdle(options.getLong("drainTimeout") * 1000);
+		monitor.stop();
+		pipeline.shutdown();
+
+		monitor.report(String.format("Replay: %d batches from %s", arrivals.size(), options), idle);
+	}
+
+	/**
+	 * Submits the recorded batches at their recorded time, divided by the speed. A speed of 0 submits all batches at
+	 * once.
+	 */
+	private void replay(Pipeline pipeline) throws InterruptedException {
+		double speed = options.getDouble("speed");
+		long start = System.nanoTime();
+		for (TraceReader.Arrival arrival : arrivals) {
+			if (speed > 0) {
+				long wait = start + (long) (arrival.getTime() * 1000000 / speed) - System.nanoTime();
+				if (wait > 0) {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				}
+			}
+			if (arrival.isGeotriggers()) {
+				pipeline.submitGeotriggers(arrival.getGeotriggers());
+			} else {
+				pipeline.submitNotifications(arrival.getNotifications());
+			}
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.plotprojects.retail.android.FilterableNotification;
+import com.plotprojects.retail.android.Geotrigger;
+
+/**
+ * Reads the traces written by the batch recorder of the module.
+ *
+ * Traces are read in the given order. Time between sessions, when the app wasn't running, is left out, so every
+ * session starts right after the last record of the previous session. Free text left out of anonymized traces is
+ * replaced by text of the same length.
+ */
+final class TraceReader {
+	private static final byte[] MAGIC = { 'P', 'L', 'T', 'R' };
+	private static final int VERSION = 1;
+	private static final long SESSION_GAP_MILLIS = 1000;
+
+	/**
+	 * A recorded batch with the decision made for it, if any.
+	 */
+	static final class Arrival {
+		private final long time;
+		private final boolean geotriggers;
+		private final List<?> items;
+		private Set<String> passedIds;
+		private boolean script;
+
+		private Arrival(long time, boolean geotriggers, List<?> items) {
+			this.time = time;
+			this.geotriggers = geotriggers;
+			this.items = items;
+		}
+
+		/**
+		 * @return milliseconds since the start of the first trace
+		 */
+		long getTime() {
+			return time;
+		}
+
+		boolean isGeotriggers() {
+			return geotriggers;
+		}
+
+		@SuppressWarnings("unchecked")
+		List<FilterableNotification> getNotifications() {
+			return (List<FilterableNotification>) items;
+		}
+
+		@SuppressWarnings("unchecked")
+		List<Geotrigger> getGeotriggers() {
+			return (List<Geotrigger>) items;
+		}
+
+		/**
+		 * @return whether the recording contains a decision of the script for this batch
+		 */
+		boolean hasScriptDecision() {
+			return passedIds != null && script;
+		}
+
+		/**
+		 * @return the identifiers of the items that were sent or marked handled
+		 */
+		Set<String> getPassedIds() {
+			return passedIds != null ? passedIds : Collections.<String>emptySet();
+		}
+	}
+
+	private final List<Arrival> arrivals = new ArrayList<Arrival>();
+	// sequence numbers restart in a new process, a decision belongs to the latest batch with its number
+	private final Map<Integer, Arrival> undecided = new HashMap<Integer, Arrival>();
+	private long offset = 0;
+	private long lastTime = 0;
+
+	private TraceReader() {
+	}
+
+	/**
+	 * @return the batches of all traces, in order of arrival
+	 */
+	static List<Arrival> read(List<File> files) throws IOException {
+		TraceReader reader = new TraceReader();
+		for (File file : files) {
+			reader.readFile(file);
+		}
+		return reader.arrivals;
+	}
+
+	private void readFile(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException(file + " isn't a batch recording");
+			}
+			int version = in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException(file + " has unsupported version " + version);
+			}
+			in.readUnsignedByte(); // flags
+			in.readLong(); // start
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					return;
+				}
+				byte[] record = new byte[length];
+				try {
+					in.readFully(record);
+				} catch (EOFException e) {
+					// the last record was being written when the trace was copied
+					return;
+				}
+				readRecord(new DataInputStream(new ByteArrayInputStream(record)));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void readRecord(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		long time = in.readLong();
+		int sequenceNumber = in.readInt();
+		switch (type) {
+			case 'S':
+				offset = lastTime + (arrivals.isEmpty() ? 0 : SESSION_GAP_MILLIS) - time;
+				break;
+			case 'N':
+				addArrival(time, sequenceNumber, false, readNotifications(in));
+				break;
+			case 'G':
+				addArrival(time, sequenceNumber, true, readGeotriggers(in));
+				break;
+			case 'n':
+			case 'g':
+				readDecision(in, sequenceNumber);
+				break;
+			default:
+				// records of later versions are skipped
+				break;
+		}
+	}
+
+	private void addArrival(long time, int sequenceNumber, boolean geotriggers, List<?> items) {
+		lastTime = Math.max(lastTime, time + offset);
+		Arrival arrival = new Arrival(lastTime, geotriggers, items);
+		arrivals.add(arrival);
+		undecided.put(sequenceNumber, arrival);
+	}
+
+	private void readDecision(DataInputStream in, int sequenceNumber) throws IOException {
+		boolean script = in.readBoolean();
+		int count = in.readInt();
+		Set<String> ids = new HashSet<String>();
+		for (int i = 0; i < count; i++) {
+			ids.add(readString(in));
+		}
+		Arrival arrival = undecided.remove(sequenceNumber);
+		if (arrival != null) {
+			arrival.passedIds = ids;
+			arrival.script = script;
+		}
+	}
+
+	private static List<FilterableNotification> readNotifications(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<FilterableNotification> result = new ArrayList<FilterableNotification>(count);
+		for (int i = 0; i < count; i++) {
+			String id = readString(in);
+			String message = readString(in);
+			String data = readString(in);
+			String trigger = readString(in);
+			double latitude = in.readDouble();
+			double longitude = in.readDouble();
+			int dwellingMinutes = in.readInt();
+			int matchRange = in.readInt();
+			String handlerType = readString(in);
+			result.add(new FilterableNotification(id, message, data, trigger, latitude, longitude, dwellingMinutes, matchRange, handlerType));
+		}
+		return result;
+	}
+
+	private static List<Geotrigger> readGeotriggers(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<Geotrigger> result = new ArrayList<Geotrigger>(count);
+		for (int i = 0; i < count; i++) {
+			String id = readString(in);
+			String name = readString(in);
+			String data = readString(in);
+			String trigger = readString(in);
+			double latitude = in.readDouble();
+			double longitude = in.readDouble();
+			int dwellingMinutes = in.readInt();
+			int matchRange = in.readInt();
+			result.add(new Geotrigger(id, name, data, trigger, latitude, longitude, dwellingMinutes, matchRange));
+		}
+		return result;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == -1) {
+			return null;
+		}
+		if (length < -1) {
+			// anonymized text, only the length was recorded
+			char[] text = new char[-2 - length];
+			Arrays.fill(text, 'x');
+			return new String(text);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
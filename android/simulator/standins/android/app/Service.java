@@ -0,0 +1,50 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Stand-in for the Android service. The simulator calls onStartCommand itself on the simulated main thread.
+ */
+public abstract class Service extends Context {
+	public static final int START_STICKY = 1;
+	public static final int START_NOT_STICKY = 2;
+
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		return START_NOT_STICKY;
+	}
+
+	public void onCreate() {
+	}
+
+	public void onDestroy() {
+	}
+
+	public void onTaskRemoved(Intent rootIntent) {
+	}
+
+	public void stopSelf() {
+	}
+
+	public void stopSelf(int startId) {
+	}
+
+	public boolean stopSelfResult(int startId) {
+		return true;
+	}
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.app.job;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stand-in for the job scheduler. Scheduling always fails, deferred geotrigger handling isn't simulated.
+ */
+public class JobScheduler {
+	public static final int RESULT_FAILURE = 0;
+	public static final int RESULT_SUCCESS = 1;
+
+	public int schedule(JobInfo job) {
+		return RESULT_FAILURE;
+	}
+
+	public void cancel(int jobId) {
+	}
+
+	public List<JobInfo> getAllPendingJobs() {
+		return new ArrayList<JobInfo>();
+	}
+}
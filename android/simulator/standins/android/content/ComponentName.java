@@ -0,0 +1,37 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.content;
+
+/**
+ * Stand-in for a component name.
+ */
+public final class ComponentName {
+	private final String packageName;
+	private final Class<?> cls;
+
+	public ComponentName(Context context, Class<?> cls) {
+		this.packageName = context.getPackageName();
+		this.cls = cls;
+	}
+
+	public String getPackageName() {
+		return packageName;
+	}
+
+	public String getClassName() {
+		return cls.getName();
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.content;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.app.job.JobScheduler;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+
+/**
+ * Stand-in for the Android context. Shared preferences are kept in memory and files are written to a temporary
+ * directory that is created once per run, or to the directory in the <code>simulator.filesDir</code> system
+ * property.
+ */
+public abstract class Context {
+	public static final int MODE_PRIVATE = 0;
+	public static final int MODE_MULTI_PROCESS = 4;
+	public static final String JOB_SCHEDULER_SERVICE = "jobscheduler";
+	public static final String ACTIVITY_SERVICE = "activity";
+
+	/**
+	 * Handles the intents passed to startService. Not part of the Android API.
+	 */
+	public interface ServiceStarter {
+		void start(Intent intent);
+	}
+
+	private static final Map<String, SharedPreferences> preferences = new HashMap<String, SharedPreferences>();
+	private static File filesDir;
+	private static volatile ServiceStarter serviceStarter;
+
+	public static void setServiceStarter(ServiceStarter starter) {
+		serviceStarter = starter;
+	}
+
+	public SharedPreferences getSharedPreferences(String name, int mode) {
+		synchronized(preferences) {
+			SharedPreferences result = preferences.get(name);
+			if (result == null) {
+				result = new MemorySharedPreferences();
+				preferences.put(name, result);
+			}
+			return result;
+		}
+	}
+
+	public Context getApplicationContext() {
+		return this;
+	}
+
+	public File getFilesDir() {
+		synchronized(preferences) {
+			if (filesDir == null) {
+				String path = System.getProperty("simulator.filesDir");
+				try {
+					filesDir = path != null ? new File(path) : java.nio.file.Files.createTempDirectory("plot-simulator").toFile();
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				filesDir.mkdirs();
+			}
+			return filesDir;
+		}
+	}
+
+	public File getCacheDir() {
+		return getFilesDir();
+	}
+
+	public String getPackageName() {
+		return "com.plotprojects.simulator";
+	}
+
+	public ApplicationInfo getApplicationInfo() {
+		ApplicationInfo result = new ApplicationInfo();
+		result.processName = getPackageName();
+		return result;
+	}
+
+	public PackageManager getPackageManager() {
+		return new PackageManager();
+	}
+
+	public ClassLoader getClassLoader() {
+		return getClass().getClassLoader();
+	}
+
+	public Object getSystemService(String name) {
+		if (JOB_SCHEDULER_SERVICE.equals(name)) {
+			return new JobScheduler();
+		}
+		return null;
+	}
+
+	public void sendBroadcast(Intent intent) {
+	}
+
+	public ComponentName startService(Intent intent) {
+		ServiceStarter starter = serviceStarter;
+		if (starter != null) {
+			starter.start(intent);
+		}
+		return intent.getComponent();
+	}
+
+	public void startActivity(Intent intent) {
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Stand-in for an intent. Extras are kept as references, so a simulated batch can be passed to a service.
+ */
+public class Intent implements Parcelable {
+	public static final String ACTION_MAIN = "android.intent.action.MAIN";
+	public static final String CATEGORY_LAUNCHER = "android.intent.category.LAUNCHER";
+	public static final int FLAG_ACTIVITY_NEW_TASK = 0x10000000;
+	public static final int FLAG_ACTIVITY_SINGLE_TOP = 0x20000000;
+	public static final int FLAG_ACTIVITY_RESET_TASK_IF_NEEDED = 0x00200000;
+	public static final Creator CREATOR = new Creator();
+
+	private String action;
+	private ComponentName component;
+	private final Map<String, Object> extras = new HashMap<String, Object>();
+
+	public Intent() {
+	}
+
+	public Intent(String action) {
+		this.action = action;
+	}
+
+	public Intent(Context context, Class<?> cls) {
+		this.component = new ComponentName(context, cls);
+	}
+
+	public ComponentName getComponent() {
+		return component;
+	}
+
+	public String getAction() {
+		return action;
+	}
+
+	public Intent setAction(String action) {
+		this.action = action;
+		return this;
+	}
+
+	public Intent addCategory(String category) {
+		return this;
+	}
+
+	public Intent addFlags(int flags) {
+		return this;
+	}
+
+	public Intent putExtra(String name, Parcelable value) {
+		extras.put(name, value);
+		return this;
+	}
+
+	public Intent putExtra(String name, String value) {
+		extras.put(name, value);
+		return this;
+	}
+
+	public boolean hasExtra(String name) {
+		return extras.containsKey(name);
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T extends Parcelable> T getParcelableExtra(String name) {
+		return (T) extras.get(name);
+	}
+
+	public String getStringExtra(String name) {
+		return (String) extras.get(name);
+	}
+
+	public void setExtrasClassLoader(ClassLoader loader) {
+	}
+
+	public void writeToParcel(Parcel out, int flags) {
+	}
+
+	public static final class Creator {
+		public Intent createFromParcel(Parcel in) {
+			return new Intent();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shared preferences kept in memory.
+ */
+final class MemorySharedPreferences implements SharedPreferences {
+	private final Map<String, Object> values = new HashMap<String, Object>();
+
+	public synchronized boolean getBoolean(String key, boolean defValue) {
+		Object value = values.get(key);
+		return value != null ? (Boolean) value : defValue;
+	}
+
+	public synchronized int getInt(String key, int defValue) {
+		Object value = values.get(key);
+		return value != null ? (Integer) value : defValue;
+	}
+
+	public synchronized long getLong(String key, long defValue) {
+		Object value = values.get(key);
+		return value != null ? (Long) value : defValue;
+	}
+
+	public synchronized float getFloat(String key, float defValue) {
+		Object value = values.get(key);
+		return value != null ? (Float) value : defValue;
+	}
+
+	public synchronized String getString(String key, String defValue) {
+		Object value = values.get(key);
+		return value != null ? (String) value : defValue;
+	}
+
+	public Editor edit() {
+		return new MemoryEditor();
+	}
+
+	private final class MemoryEditor implements Editor {
+		private final Map<String, Object> changes = new HashMap<String, Object>();
+
+		public Editor putBoolean(String key, boolean value) {
+			changes.put(key, value);
+			return this;
+		}
+
+		public Editor putInt(String key, int value) {
+			changes.put(key, value);
+			return this;
+		}
+
+		public Editor putLong(String key, long value) {
+			changes.put(key, value);
+			return this;
+		}
+
+		public Editor putFloat(String key, float value) {
+			changes.put(key, value);
+			return this;
+		}
+
+		public Editor putString(String key, String value) {
+			changes.put(key, value);
+			return this;
+		}
+
+		public Editor remove(String key) {
+			changes.put(key, null);
+			return this;
+		}
+
+		public boolean commit() {
+			synchronized(MemorySharedPreferences.this) {
+				for (Map.Entry<String, Object> change : changes.entrySet()) {
+					if (change.getValue() == null) {
+						values.remove(change.getKey());
+					} else {
+						values.put(change.getKey(), change.getValue());
+					}
+				}
+			}
+			return true;
+		}
+
+		public void apply() {
+			commit();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.content;
+
+/**
+ * Stand-in for shared preferences.
+ */
+public interface SharedPreferences {
+	boolean getBoolean(String key, boolean defValue);
+
+	int getInt(String key, int defValue);
+
+	long getLong(String key, long defValue);
+
+	float getFloat(String key, float defValue);
+
+	String getString(String key, String defValue);
+
+	Editor edit();
+
+	interface Editor {
+		Editor putBoolean(String key, boolean value);
+
+		Editor putInt(String key, int value);
+
+		Editor putLong(String key, long value);
+
+		Editor putFloat(String key, float value);
+
+		Editor putString(String key, String value);
+
+		Editor remove(String key);
+
+		boolean commit();
+
+		void apply();
+	}
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.content.pm;
+
+import android.content.ComponentName;
+import android.content.Intent;
+
+/**
+ * Stand-in for the package manager. All components run in the process of the application.
+ */
+public class PackageManager {
+	public static class NameNotFoundException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	public Intent getLaunchIntentForPackage(String packageName) {
+		return null;
+	}
+
+	public ServiceInfo getServiceInfo(ComponentName component, int flags) throws NameNotFoundException {
+		ServiceInfo result = new ServiceInfo();
+		result.processName = component.getPackageName();
+		return result;
+	}
+}
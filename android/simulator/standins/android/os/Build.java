@@ -0,0 +1,31 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+/**
+ * Stand-in for the build information. The simulator behaves like Android 5.0.
+ */
+public class Build {
+	public static class VERSION {
+		public static final int SDK_INT = 21;
+	}
+
+	public static class VERSION_CODES {
+		public static final int LOLLIPOP = 21;
+		public static final int N = 24;
+		public static final int O = 26;
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for a handler. Runs callbacks on the thread of its looper.
+ */
+public class Handler {
+	private final Looper looper;
+	private final Map<Runnable, List<ScheduledFuture<?>>> scheduled = new IdentityHashMap<Runnable, List<ScheduledFuture<?>>>();
+
+	public Handler() {
+		this(Looper.getMainLooper());
+	}
+
+	public Handler(Looper looper) {
+		this.looper = looper;
+	}
+
+	public boolean post(Runnable r) {
+		return postDelayed(r, 0);
+	}
+
+	public boolean postDelayed(final Runnable r, long delayMillis) {
+		synchronized(scheduled) {
+			List<ScheduledFuture<?>> futures = scheduled.get(r);
+			if (futures == null) {
+				futures = new ArrayList<ScheduledFuture<?>>();
+				scheduled.put(r, futures);
+			}
+			final List<ScheduledFuture<?>> list = futures;
+			final ScheduledFuture<?>[] self = new ScheduledFuture<?>[1];
+			Runnable task = new Runnable() {
+				public void run() {
+					synchronized(scheduled) {
+						list.remove(self[0]);
+					}
+					r.run();
+				}
+			};
+			self[0] = looper.getExecutor().schedule(task, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+			futures.add(self[0]);
+		}
+		return true;
+	}
+
+	public void removeCallbacks(Runnable r) {
+		synchronized(scheduled) {
+			List<ScheduledFuture<?>> futures = scheduled.remove(r);
+			if (futures != null) {
+				for (ScheduledFuture<?> future : futures) {
+					future.cancel(false);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Stand-in for the looper. Only the main looper exists, backed by a single daemon thread.
+ */
+public final class Looper {
+	private static final Looper mainLooper = new Looper();
+
+	private final ScheduledExecutorService executor;
+	private volatile Thread thread;
+
+	private Looper() {
+		executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread result = new Thread(r, "main");
+				result.setDaemon(true);
+				thread = result;
+				return result;
+			}
+		});
+	}
+
+	public static Looper getMainLooper() {
+		return mainLooper;
+	}
+
+	public static Looper myLooper() {
+		return Thread.currentThread() == mainLooper.thread ? mainLooper : null;
+	}
+
+	ScheduledExecutorService getExecutor() {
+		return executor;
+	}
+}
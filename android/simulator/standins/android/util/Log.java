@@ -0,0 +1,72 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.util;
+
+/**
+ * Stand-in for the Android log. Warnings and errors are written to standard error, other messages only when the
+ * <code>simulator.verbose</code> system property is set.
+ */
+public final class Log {
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+
+	private static final boolean verbose = Boolean.getBoolean("simulator.verbose");
+
+	private Log() {
+	}
+
+	public static boolean isLoggable(String tag, int level) {
+		return verbose || level >= WARN;
+	}
+
+	public static int println(int priority, String tag, String msg) {
+		if (isLoggable(tag, priority)) {
+			System.err.println("VVDIWE".charAt(Math.min(Math.max(priority - 1, 0), 5)) + "/" + tag + ": " + msg);
+		}
+		return 0;
+	}
+
+	public static int v(String tag, String msg) {
+		return println(VERBOSE, tag, msg);
+	}
+
+	public static int d(String tag, String msg) {
+		return println(DEBUG, tag, msg);
+	}
+
+	public static int i(String tag, String msg) {
+		return println(INFO, tag, msg);
+	}
+
+	public static int w(String tag, String msg) {
+		return println(WARN, tag, msg);
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return println(WARN, tag, msg + ": " + tr);
+	}
+
+	public static int e(String tag, String msg) {
+		return println(ERROR, tag, msg);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return println(ERROR, tag, msg + ": " + tr);
+	}
+}
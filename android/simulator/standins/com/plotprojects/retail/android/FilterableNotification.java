@@ -0,0 +1,90 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.retail.android;
+
+import android.os.Parcelable;
+
+/**
+ * Stand-in for a notification that can be filtered.
+ */
+public class FilterableNotification implements Parcelable {
+	private final String id;
+	private String message;
+	private String data;
+	private final String trigger;
+	private final double geofenceLatitude;
+	private final double geofenceLongitude;
+	private final int dwellingMinutes;
+	private final int matchRange;
+	private final String handlerType;
+
+	public FilterableNotification(String id, String message, String data, String trigger, double geofenceLatitude,
+			double geofenceLongitude, int dwellingMinutes, int matchRange, String handlerType) {
+		this.id = id;
+		this.message = message;
+		this.data = data;
+		this.trigger = trigger;
+		this.geofenceLatitude = geofenceLatitude;
+		this.geofenceLongitude = geofenceLongitude;
+		this.dwellingMinutes = dwellingMinutes;
+		this.matchRange = matchRange;
+		this.handlerType = handlerType;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+	public String getData() {
+		return data;
+	}
+
+	public void setData(String data) {
+		this.data = data;
+	}
+
+	public String getTrigger() {
+		return trigger;
+	}
+
+	public double getGeofenceLatitude() {
+		return geofenceLatitude;
+	}
+
+	public double getGeofenceLongitude() {
+		return geofenceLongitude;
+	}
+
+	public int getDwellingMinutes() {
+		return dwellingMinutes;
+	}
+
+	public int getMatchRange() {
+		return matchRange;
+	}
+
+	public String getHandlerType() {
+		return handlerType;
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.retail.android;
+
+import java.util.List;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Parcelable;
+
+/**
+ * Stand-in for the geotrigger handler utilities. A batch is passed to the service as an extra of the intent.
+ */
+public final class GeotriggerHandlerUtil {
+	public static final String EXTRA_BATCH = "com.plotprojects.simulator.GEOTRIGGER_BATCH";
+
+	private GeotriggerHandlerUtil() {
+	}
+
+	public static boolean isGeotriggerHandlerIntent(Intent intent) {
+		return intent != null && intent.hasExtra(EXTRA_BATCH);
+	}
+
+	public static Batch getBatch(Intent intent, Context context) {
+		return intent.getParcelableExtra(EXTRA_BATCH);
+	}
+
+	/**
+	 * A batch of geotriggers. Override markGeotriggersHandled to observe the result.
+	 */
+	public static class Batch implements Parcelable {
+		private final List<Geotrigger> geotriggers;
+
+		public Batch(List<Geotrigger> geotriggers) {
+			this.geotriggers = geotriggers;
+		}
+
+		public List<Geotrigger> getGeotriggers() {
+			return geotriggers;
+		}
+
+		public void markGeotriggersHandled(List<Geotrigger> geotriggers) {
+		}
+	}
+}
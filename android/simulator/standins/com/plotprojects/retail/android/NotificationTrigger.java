@@ -0,0 +1,26 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.retail.android;
+
+/**
+ * Stand-in for a loaded notification.
+ */
+public class NotificationTrigger extends FilterableNotification {
+	public NotificationTrigger(String id, String message, String data, String trigger, double geofenceLatitude,
+			double geofenceLongitude, int dwellingMinutes, int matchRange, String handlerType) {
+		super(id, message, data, trigger, geofenceLatitude, geofenceLongitude, dwellingMinutes, matchRange, handlerType);
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.retail.android;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import android.content.Context;
+
+/**
+ * Stand-in for the Plot library. Keeps no state apart from the sent notifications and geotriggers added by the
+ * simulator.
+ */
+public final class Plot {
+	private static final List<SentNotification> sentNotifications = new ArrayList<SentNotification>();
+	private static final List<SentGeotrigger> sentGeotriggers = new ArrayList<SentGeotrigger>();
+	private static volatile boolean enabled = true;
+
+	private Plot() {
+	}
+
+	public static void init(Context context) {
+	}
+
+	@Deprecated
+	public static void init(Context context, PlotConfiguration configuration) {
+	}
+
+	public static void enable() {
+		enabled = true;
+	}
+
+	public static void disable() {
+		enabled = false;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setCooldownPeriod(int cooldownSeconds) {
+	}
+
+	public static String getVersion() {
+		return "simulator";
+	}
+
+	public static void mailDebugLog() {
+	}
+
+	public static void setStringSegmentationProperty(String property, String value) {
+	}
+
+	public static void setBooleanSegmentationProperty(String property, boolean value) {
+	}
+
+	public static void setLongSegmentationProperty(String property, long value) {
+	}
+
+	public static void setDoubleSegmentationProperty(String property, double value) {
+	}
+
+	public static void setDateSegmentationProperty(String property, long value) {
+	}
+
+	public static Collection<NotificationTrigger> getLoadedNotifications() {
+		return new ArrayList<NotificationTrigger>();
+	}
+
+	public static Collection<Geotrigger> getLoadedGeotriggers() {
+		return new ArrayList<Geotrigger>();
+	}
+
+	public static Collection<SentNotification> getSentNotifications() {
+		synchronized(sentNotifications) {
+			return new ArrayList<SentNotification>(sentNotifications);
+		}
+	}
+
+	public static Collection<SentGeotrigger> getSentGeotriggers() {
+		synchronized(sentGeotriggers) {
+			return new ArrayList<SentGeotrigger>(sentGeotriggers);
+		}
+	}
+
+	public static void clearSentNotifications() {
+		synchronized(sentNotifications) {
+			sentNotifications.clear();
+		}
+	}
+
+	public static void clearSentGeotriggers() {
+		synchronized(sentGeotriggers) {
+			sentGeotriggers.clear();
+		}
+	}
+
+	/**
+	 * Adds a notification to the sent history. Not part of the Plot API.
+	 */
+	public static void addSentNotification(SentNotification notification) {
+		synchronized(sentNotifications) {
+			sentNotifications.add(notification);
+		}
+	}
+
+	/**
+	 * Adds a geotrigger to the sent history. Not part of the Plot API.
+	 */
+	public static void addSentGeotrigger(SentGeotrigger geotrigger) {
+		synchronized(sentGeotriggers) {
+			sentGeotriggers.add(geotrigger);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.retail.android;
+
+/**
+ * Stand-in for a sent geotrigger.
+ */
+public class SentGeotrigger extends Geotrigger {
+	private final String matchId;
+	private final long dateSent;
+	private final long dateHandled;
+
+	public SentGeotrigger(Geotrigger geotrigger, String matchId, long dateSent, long dateHandled) {
+		super(geotrigger.getId(), geotrigger.getName(), geotrigger.getData(), geotrigger.getTrigger(),
+				geotrigger.getGeofenceLatitude(), geotrigger.getGeofenceLongitude(),
+				geotrigger.getDwellingMinutes(), geotrigger.getMatchRange());
+		this.matchId = matchId;
+		this.dateSent = dateSent;
+		this.dateHandled = dateHandled;
+	}
+
+	public String getMatchId() {
+		return matchId;
+	}
+
+	public long getDateSent() {
+		return dateSent;
+	}
+
+	public long getDateHandled() {
+		return dateHandled;
+	}
+
+	public boolean isHandled() {
+		return dateHandled != 0;
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.retail.android;
+
+/**
+ * Stand-in for a sent notification.
+ */
+public class SentNotification extends FilterableNotification {
+	private final String matchId;
+	private final long dateSent;
+	private final long dateOpened;
+
+	public SentNotification(FilterableNotification notification, String matchId, long dateSent, long dateOpened) {
+		super(notification.getId(), notification.getMessage(), notification.getData(), notification.getTrigger(),
+				notification.getGeofenceLatitude(), notification.getGeofenceLongitude(),
+				notification.getDwellingMinutes(), notification.getMatchRange(), notification.getHandlerType());
+		this.matchId = matchId;
+		this.dateSent = dateSent;
+		this.dateOpened = dateOpened;
+	}
+
+	public String getMatchId() {
+		return matchId;
+	}
+
+	public long getDateSent() {
+		return dateSent;
+	}
+
+	public long getDateOpened() {
+		return dateOpened;
+	}
+
+	public boolean isOpened() {
+		return dateOpened != 0;
+	}
+}
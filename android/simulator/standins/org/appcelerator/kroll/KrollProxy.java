@@ -0,0 +1,60 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.appcelerator.kroll;
+
+import android.app.Activity;
+
+/**
+ * Stand-in for a Kroll proxy. Events are delivered to the listener set with setEventListener.
+ */
+public class KrollProxy {
+	/**
+	 * Receives the events fired by proxies. Not part of the Titanium API.
+	 */
+	public interface EventListener {
+		void onEvent(KrollProxy proxy, String event, Object data);
+	}
+
+	private static volatile EventListener eventListener;
+
+	public static void setEventListener(EventListener listener) {
+		eventListener = listener;
+	}
+
+	public boolean hasListeners(String event) {
+		return eventListener != null;
+	}
+
+	public boolean fireEvent(String event, Object data) {
+		EventListener listener = eventListener;
+		if (listener != null) {
+			listener.onEvent(this, event, data);
+		}
+		return true;
+	}
+
+	protected void eventListenerAdded(String event, int count, KrollProxy proxy) {
+	}
+
+	protected void eventListenerRemoved(String event, int count, KrollProxy proxy) {
+	}
+
+	public void onResume(Activity activity) {
+	}
+
+	public void onDestroy(Activity activity) {
+	}
+}
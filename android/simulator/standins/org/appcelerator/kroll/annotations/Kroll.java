@@ -0,0 +1,70 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.appcelerator.kroll.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Stand-in for the Kroll annotations, which have no effect in the simulator.
+ */
+public @interface Kroll {
+	@Retention(RetentionPolicy.SOURCE)
+	@interface module {
+		String name() default "";
+		String id() default "";
+		Class<?> parentModule() default Object.class;
+	}
+
+	@Retention(RetentionPolicy.SOURCE)
+	@interface proxy {
+		String name() default "";
+		Class<?> creatableInModule() default Object.class;
+		String[] propertyAccessors() default {};
+	}
+
+	@Retention(RetentionPolicy.SOURCE)
+	@interface method {
+		String name() default "";
+		boolean runOnUiThread() default false;
+	}
+
+	@Retention(RetentionPolicy.SOURCE)
+	@interface getProperty {
+		String name() default "";
+		boolean enumerable() default true;
+	}
+
+	@Retention(RetentionPolicy.SOURCE)
+	@interface setProperty {
+		String name() default "";
+		boolean retain() default true;
+	}
+
+	@Retention(RetentionPolicy.SOURCE)
+	@interface onAppCreate {
+	}
+
+	@Retention(RetentionPolicy.SOURCE)
+	@interface argument {
+		String name() default "";
+		boolean optional() default false;
+	}
+
+	@Retention(RetentionPolicy.SOURCE)
+	@interface constant {
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.appcelerator.titanium;
+
+import android.app.Activity;
+import android.content.Context;
+
+/**
+ * Stand-in for the Titanium application, of which a single instance exists.
+ */
+public class TiApplication extends Context {
+	private static final TiApplication instance = new TiApplication();
+	private final Activity currentActivity = new Activity();
+
+	public static TiApplication getInstance() {
+		return instance;
+	}
+
+	public Activity getCurrentActivity() {
+		return currentActivity;
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ti.modules.titanium.android;
+
+import android.app.Service;
+import android.content.Intent;
+
+/**
+ * Stand-in for a service that runs a script. Instead of a script, the runner set with setScriptRunner is called.
+ */
+public class TiJSService extends Service {
+	/**
+	 * Runs the script of a service. Not part of the Titanium API.
+	 */
+	public interface ScriptRunner {
+		void run(String url, TiJSService service, Intent intent);
+	}
+
+	private static volatile ScriptRunner scriptRunner;
+
+	protected String url;
+
+	public TiJSService(String url) {
+		this.url = url;
+	}
+
+	public static void setScriptRunner(ScriptRunner runner) {
+		scriptRunner = runner;
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		ScriptRunner runner = scriptRunner;
+		if (runner != null) {
+			runner.run(url, this, intent);
+		}
+		return START_NOT_STICKY;
+	}
+}
@@ -0,0 +1,404 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.appcelerator.titanium.TiApplication;
+
+import com.plotprojects.retail.android.FilterableNotification;
+import com.plotprojects.retail.android.Geotrigger;
+
+/**
+ * Records the contents and arrival times of the batches passed to the notification filter and geotrigger handler,
+ * together with the decisions made for them, so the workload can be replayed offline.
+ *
+ * The trace starts with the magic bytes "PLTR", a version byte, a flags byte (1 when anonymized) and the time the
+ * trace was started in milliseconds (0 when anonymized). It is followed by records that are each prefixed with
+ * their length as a 32-bit integer. Every record starts with a type byte and the number of milliseconds since the
+ * trace was started. Every process writes a session record first, the sequence numbers of batches are unique
+ * within a session. Strings are written as a 32-bit length (-1 for null) followed by UTF-8 bytes. Free text of
+ * anonymized traces is left out, only its length is written as <code>-2 - length</code>. Identifiers of
+ * anonymized traces are replaced by a salted hash and coordinates are rounded to two decimals.
+ *
+ * Records are written on a background thread. When the trace grows beyond the configured size it is moved to a
+ * backup file, replacing the previous backup, and a new trace is started.
+ */
+final class BatchRecorder {
+	private static final String TRACE_FILE = "plot-batches.trace";
+	private static final String BACKUP_SUFFIX = ".1";
+	private static final byte[] MAGIC = { 'P', 'L', 'T', 'R' };
+	private static final byte VERSION = 1;
+	private static final byte FLAG_ANONYMIZED = 1;
+	private static final byte RECORD_SESSION = 'S';
+	private static final byte RECORD_NOTIFICATIONS = 'N';
+	private static final byte RECORD_GEOTRIGGERS = 'G';
+	private static final byte RECORD_NOTIFICATION_DECISION = 'n';
+	private static final byte RECORD_GEOTRIGGER_DECISION = 'g';
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final Object lock = new Object();
+	// weak keys, so batches of which no decision is recorded, for example because the script failed, aren't kept
+	private static final Map<IdentityReference, Integer> sequenceNumbers = new HashMap<IdentityReference, Integer>();
+	private static final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "plot-batch-recorder");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static int nextSequenceNumber = 0;
+	private static boolean sessionStarted = false;
+	private static byte[] salt;
+
+	private BatchRecorder() {
+	}
+
+	static boolean isEnabled() {
+		return SettingsUtil.isBatchRecordingEnabled();
+	}
+
+	static void recordNotificationBatch(Object batch, List<FilterableNotification> notifications) {
+		boolean anonymize = SettingsUtil.isBatchRecordingAnonymized();
+		Record record = new Record(RECORD_NOTIFICATIONS, register(batch), anonymize);
+		record.writeInt(notifications.size());
+		for (FilterableNotification notification : notifications) {
+			record.writeId(notification.getId());
+			record.writeText(notification.getMessage());
+			record.writeText(notification.getData());
+			record.writeString(notification.getTrigger());
+			record.writeCoordinate(notification.getGeofenceLatitude());
+			record.writeCoordinate(notification.getGeofenceLongitude());
+			record.writeInt(notification.getDwellingMinutes());
+			record.writeInt(notification.getMatchRange());
+			record.writeString(notification.getHandlerType());
+		}
+		write(record);
+	}
+
+	static void recordGeotriggerBatch(Object batch, List<Geotrigger> geotriggers) {
+		boolean anonymize = SettingsUtil.isBatchRecordingAnonymized();
+		Record record = new Record(RECORD_GEOTRIGGERS, register(batch), anonymize);
+		record.writeInt(geotriggers.size());
+		for (Geotrigger geotrigger : geotriggers) {
+			record.writeId(geotrigger.getId());
+			record.writeText(geotrigger.getName());
+			record.writeText(geotrigger.getData());
+			record.writeString(geotrigger.getTrigger());
+			record.writeCoordinate(geotrigger.getGeofenceLatitude());
+			record.writeCoordinate(geotrigger.getGeofenceLongitude());
+			record.writeInt(geotrigger.getDwellingMinutes());
+			record.writeInt(geotrigger.getMatchRange());
+		}
+		write(record);
+	}
+
+	/**
+	 * Records which notifications of a recorded batch were sent. Batches that weren't recorded are ignored.
+	 *
+	 * @param script whether the decision was made by the script
+	 */
+	static void recordNotificationDecision(Object batch, List<FilterableNotification> sent, boolean script) {
+		Integer sequenceNumber = unregister(batch);
+		if (sequenceNumber == null) {
+			return;
+		}
+		Record record = new Record(RECORD_NOTIFICATION_DECISION, sequenceNumber, SettingsUtil.isBatchRecordingAnonymized());
+		record.writeBoolean(script);
+		record.writeInt(sent.size());
+		for (FilterableNotification notification : sent) {
+			record.writeId(notification.getId());
+		}
+		write(record);
+	}
+
+	/**
+	 * Records which geotriggers of a recorded batch were marked handled. Batches that weren't recorded are ignored.
+	 *
+	 * @param script whether the decision was made by the script
+	 */
+	static void recordGeotriggerDecision(Object batch, List<Geotrigger> handled, boolean script) {
+		Integer sequenceNumber = unregister(batch);
+		if (sequenceNumber == null) {
+			return;
+		}
+		Record record = new Record(RECORD_GEOTRIGGER_DECISION, sequenceNumber, SettingsUtil.isBatchRecordingAnonymized());
+		record.writeBoolean(script);
+		record.writeInt(handled.size());
+		for (Geotrigger geotrigger : handled) {
+			record.writeId(geotrigger.getId());
+		}
+		write(record);
+	}
+
+	/**
+	 * @return the trace files, oldest first
+	 */
+	static List<File> getFiles() {
+		List<File> result = new ArrayList<File>();
+		File backup = getBackupFile();
+		if (backup.exists()) {
+			result.add(backup);
+		}
+		File trace = getTraceFile();
+		if (trace.exists()) {
+			result.add(trace);
+		}
+		return result;
+	}
+
+	/**
+	 * Deletes the recorded traces. Recording continues in a new trace when it is enabled.
+	 */
+	static void clear() {
+		writer.execute(new Runnable() {
+			public void run() {
+				getTraceFile().delete();
+				getBackupFile().delete();
+				synchronized(lock) {
+					sessionStarted = false;
+				}
+			}
+		});
+	}
+
+	private static int register(Object batch) {
+		synchronized(lock) {
+			purge();
+			int sequenceNumber = nextSequenceNumber++;
+			sequenceNumbers.put(new IdentityReference(batch, collected), sequenceNumber);
+			return sequenceNumber;
+		}
+	}
+
+	private static Integer unregister(Object batch) {
+		synchronized(lock) {
+			purge();
+			return sequenceNumbers.remove(new IdentityReference(batch, null));
+		}
+	}
+
+	/**
+	 * Removes the sequence numbers of batches that were garbage collected. Only called with the lock held.
+	 */
+	private static void purge() {
+		Object reference;
+		while ((reference = collected.poll()) != null) {
+			sequenceNumbers.remove(reference);
+		}
+	}
+
+	private static void write(final Record record) {
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					append(record);
+				} catch (IOException e) {
+					ModuleLog.w(e, "Couldn't write batch recording");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Appends the record to the trace, starting a new trace when needed. Only called on the writer thread.
+	 */
+	private static void append(Record record) throws IOException {
+		File file = getTraceFile();
+		if (file.exists() && file.length() >= SettingsUtil.getBatchRecordingMaxSize()) {
+			File backup = getBackupFile();
+			backup.delete();
+			if (!file.renameTo(backup)) {
+				ModuleLog.w("Couldn't move batch recording to backup, starting a new recording");
+				file.delete();
+			}
+		}
+
+		long start = SettingsUtil.getBatchRecordingStart();
+		boolean newSession;
+		synchronized(lock) {
+			newSession = !sessionStarted;
+			sessionStarted = true;
+		}
+		OutputStream out = new FileOutputStream(file, true);
+		try {
+			DataOutputStream data = new DataOutputStream(out);
+			if (file.length() == 0) {
+				start = System.currentTimeMillis();
+				SettingsUtil.setBatchRecordingStart(start);
+				data.write(MAGIC);
+				data.writeByte(VERSION);
+				data.writeByte(record.anonymize ? FLAG_ANONYMIZED : 0);
+				data.writeLong(record.anonymize ? 0 : start);
+				newSession = true;
+			}
+			if (newSession) {
+				Record session = new Record(RECORD_SESSION, 0, record.anonymize);
+				writeRecord(data, session, start);
+			}
+			writeRecord(data, record, start);
+			data.flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, Record record, long start) throws IOException {
+		byte[] body = record.toByteArray();
+		// type, time and sequence number are followed by the body
+		out.writeInt(1 + 8 + 4 + body.length);
+		out.writeByte(record.type);
+		out.writeLong(Math.max(0, record.time - start));
+		out.writeInt(record.sequenceNumber);
+		out.write(body);
+	}
+
+	private static File getTraceFile() {
+		return new File(TiApplication.getInstance().getFilesDir(), TRACE_FILE);
+	}
+
+	private static File getBackupFile() {
+		return new File(TiApplication.getInstance().getFilesDir(), TRACE_FILE + BACKUP_SUFFIX);
+	}
+
+	private static byte[] getSalt() {
+		synchronized(lock) {
+			if (salt == null) {
+				String stored = SettingsUtil.getBatchRecordingSalt();
+				if (stored == null) {
+					byte[] bytes = new byte[16];
+					new SecureRandom().nextBytes(bytes);
+					stored = toHex(bytes, bytes.length);
+					SettingsUtil.setBatchRecordingSalt(stored);
+				}
+				salt = stored.getBytes(UTF8);
+			}
+			return salt;
+		}
+	}
+
+	private static String hashId(String id) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update(getSalt());
+		return toHex(digest.digest(id.getBytes(UTF8)), 8);
+	}
+
+	private static String toHex(byte[] bytes, int length) {
+		char[] result = new char[length * 2];
+		for (int i = 0; i < length; i++) {
+			result[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			result[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(result);
+	}
+
+	/**
+	 * A record that is serialized on the calling thread, so the notifications and geotriggers aren't accessed from
+	 * the writer thread.
+	 */
+	private static final class Record {
+		private final byte type;
+		private final long time = System.currentTimeMillis();
+		private final int sequenceNumber;
+		private final boolean anonymize;
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+
+		public Record(byte type, int sequenceNumber, boolean anonymize) {
+			this.type = type;
+			this.sequenceNumber = sequenceNumber;
+			this.anonymize = anonymize;
+		}
+
+		public void writeInt(int value) {
+			try {
+				out.writeInt(value);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void writeBoolean(boolean value) {
+			try {
+				out.writeBoolean(value);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void writeCoordinate(double value) {
+			try {
+				out.writeDouble(anonymize ? Math.round(value * 100) / 100.0 : value);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void writeId(String id) {
+			writeString(anonymize && id != null ? hashId(id) : id);
+		}
+
+		public void writeText(String value) {
+			if (anonymize && value != null) {
+				writeInt(-2 - value.getBytes(UTF8).length);
+			} else {
+				writeString(value);
+			}
+		}
+
+		public void writeString(String value) {
+			try {
+				if (value == null) {
+					out.writeInt(-1);
+				} else {
+					byte[] encoded = value.getBytes(UTF8);
+					out.writeInt(encoded.length);
+					out.write(encoded);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public byte[] toByteArray() {
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.plotprojects.retail.android.FilterableNotification;
+import com.plotprojects.retail.android.Geotrigger;
+
+/**
+ * Coordinates the notification filter and the geotrigger handler.
+ *
+ * Every batch gets a deadline based on its arrival time and the triggers it contains. Pending batches are popped
+ * in order of their deadline. Filter batches delay user visible notifications, so while filter batches are
+ * pending or being processed the start of the geotrigger handler script is held back. A held back script is
+ * started as soon as the filter work is done, or when the deadline of its batch passes, so geotrigger handling
+ * can't starve.
+ *
+ * An active filter batch of which the deadline has passed is treated as abandoned, for example because the filter
+ * script failed and never sent it. Held back scripts no longer wait for such a batch.
+ */
+final class BatchScheduler {
+	static final String TRIGGER_ENTER = "enter";
+
+	static final long NOTIFICATION_ENTER_BUDGET_MILLIS = 2 * 1000;
+	static final long NOTIFICATION_BUDGET_MILLIS = 10 * 1000;
+	static final long GEOTRIGGER_ENTER_BUDGET_MILLIS = 30 * 1000;
+	static final long GEOTRIGGER_BUDGET_MILLIS = 2 * 60 * 1000;
+
+	static final String METRIC_GEOTRIGGER_SCRIPTS_DEFERRED = "geotriggerScriptsDeferred";
+	static final String METRIC_GEOTRIGGER_SCRIPTS_EXPIRED = "geotriggerScriptsStartedAtDeadline";
+
+	private static final Object lock = new Object();
+	private static final LinkedList<DeferredStart> deferredStarts = new LinkedList<DeferredStart>();
+	private static Handler handler;
+
+	private static final Runnable releaseRunnable = new Runnable() {
+		public void run() {
+			release();
+		}
+	};
+
+	private BatchScheduler() {
+	}
+
+	static long now() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	static long notificationDeadline(long arrival, List<FilterableNotification> notifications) {
+		for (FilterableNotification notification : notifications) {
+			if (TRIGGER_ENTER.equals(notification.getTrigger())) {
+				return arrival + NOTIFICATION_ENTER_BUDGET_MILLIS;
+			}
+		}
+		return arrival + NOTIFICATION_BUDGET_MILLIS;
+	}
+
+	static long geotriggerDeadline(long arrival, List<Geotrigger> geotriggers) {
+		for (Geotrigger geotrigger : geotriggers) {
+			if (TRIGGER_ENTER.equals(geotrigger.getTrigger())) {
+				return arrival + GEOTRIGGER_ENTER_BUDGET_MILLIS;
+			}
+		}
+		return arrival + GEOTRIGGER_BUDGET_MILLIS;
+	}
+
+	/**
+	 * Holds back the start of the geotrigger handler script while filter work is pending. When it is held back,
+	 * <code>start</code> is run when the filter work is done or <code>deadline</code> has passed. Must be called from
+	 * the main thread.
+	 *
+	 * @return whether the start was held back, otherwise the caller starts the script right away
+	 */
+	static boolean deferGeotriggerScript(long deadline, Runnable start) {
+		synchronized(lock) {
+			if (hasNotificationWork()) {
+				ListIterator<DeferredStart> it = deferredStarts.listIterator();
+				while (it.hasNext()) {
+					if (it.next().deadline > deadline) {
+						it.previous();
+						break;
+					}
+				}
+				it.add(new DeferredStart(deadline, start));
+				ModuleMetrics.increment(METRIC_GEOTRIGGER_SCRIPTS_DEFERRED);
+				scheduleRelease();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Called when a filter batch has been completed.
+	 */
+	static void notificationWorkChanged() {
+		getHandler().post(releaseRunnable);
+	}
+
+	static int getDeferredCount() {
+		synchronized(lock) {
+			return deferredStarts.size();
+		}
+	}
+
+	private static boolean hasNotificationWork() {
+		return NotificationBatches.getPendingCount() > 0 || NotificationBatches.getLatestActiveDeadline() > now();
+	}
+
+	private static void release() {
+		List<Runnable> toStart = new ArrayList<Runnable>();
+		synchronized(lock) {
+			boolean releaseAll = !hasNotificationWork();
+			long now = now();
+			while (!deferredStarts.isEmpty() && (releaseAll || deferredStarts.getFirst().deadline <= now)) {
+				if (!releaseAll) {
+					ModuleMetrics.increment(METRIC_GEOTRIGGER_SCRIPTS_EXPIRED);
+				}
+				toStart.add(deferredStarts.removeFirst().start);
+			}
+			scheduleRelease();
+		}
+		for (Runnable start : toStart) {
+			start.run();
+		}
+	}
+
+	private static void scheduleRelease() {
+		Handler h = getHandler();
+		h.removeCallbacks(releaseRunnable);
+		if (!deferredStarts.isEmpty()) {
+			long next = deferredStarts.getFirst().deadline;
+			long activeDeadline = NotificationBatches.getLatestActiveDeadline();
+			if (NotificationBatches.getPendingCount() == 0 && activeDeadline < next) {
+				// release everything once the active batches are abandoned
+				next = activeDeadline;
+			}
+			h.postDelayed(releaseRunnable, Math.max(0, next - now()));
+		}
+	}
+
+	private static synchronized Handler getHandler() {
+		if (handler == null) {
+			handler = new Handler(Looper.getMainLooper());
+		}
+		return handler;
+	}
+
+	private static final class DeferredStart {
+		private final long deadline;
+		private final Runnable start;
+
+		public DeferredStart(long deadline, Runnable start) {
+			this.deadline = deadline;
+			this.start = start;
+		}
+	}
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+import com.plotprojects.retail.android.Geotrigger;
+import com.plotprojects.retail.android.Plot;
+
+/**
+ * Holds geotriggers back until a background job runs, so the geotrigger handler script is started once for all
+ * geotriggers that arrived in the meantime instead of once per batch.
+ *
+ * A Plot batch belongs to the start request of the geotrigger handler service and can't be kept until the job runs,
+ * as the process can be stopped in the meantime. The Plot batch is therefore completed when its geotriggers are
+ * deferred, without marking the deferred geotriggers handled. The decisions of the script are stored in the
+ * geotrigger decision cache, and resolve the geotriggers when Plot delivers them again.
+ *
+ * The geotriggers are kept in memory and their ids are written to a file, so they survive when the process is
+ * stopped before the job runs. Ids read back from a file are resolved with the geotriggers loaded by Plot,
+ * geotriggers that are no longer loaded are dropped. The job is scheduled with the configured constraints and a
+ * deadline of the configured maximum delay, after which it runs even when the constraints aren't met. Files that
+ * can't be read back are dropped.
+ *
+ * A file starts with the magic bytes "PLTD" and a version byte, followed by the number of geotriggers as a 32-bit
+ * integer and the id of every geotrigger. Ids are written as a 32-bit length (-1 for null) followed by UTF-8 bytes.
+ */
+final class DeferredGeotriggers {
+	static final String ACTION_PROCESS_DEFERRED = "com.plotprojects.titanium.PROCESS_DEFERRED_GEOTRIGGERS";
+	static final String METRIC_DEFERRED = "geotriggerBatchesDeferred";
+	static final String METRIC_RUNS = "geotriggerDeferredRuns";
+	static final String METRIC_LOST = "geotriggerBatchesLost";
+
+	private static final String DEFERRED_DIR = "plot-deferred-geotriggers";
+	private static final String FILE_SUFFIX = ".geotriggers";
+	private static final byte[] MAGIC = { 'P', 'L', 'T', 'D' };
+	private static final byte VERSION = 2;
+	private static final int JOB_ID = 0x506c6f74;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final FilenameFilter DEFERRED_FILES = new FilenameFilter() {
+		public boolean accept(File dir, String name) {
+			return name.endsWith(FILE_SUFFIX);
+		}
+	};
+
+	private static final Object lock = new Object();
+	private static final Map<String, List<Geotrigger>> batches = new LinkedHashMap<String, List<Geotrigger>>();
+	private static int sequence = 0;
+
+	private DeferredGeotriggers() {
+	}
+
+	static boolean isEnabled() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && SettingsUtil.isGeotriggerDeferredEnabled();
+	}
+
+	/**
+	 * Stores the geotriggers and makes sure the job that processes them is scheduled.
+	 */
+	static void defer(Context context, List<Geotrigger> geotriggers) {
+		synchronized(lock) {
+			String name = String.format("%013d-%06d%s", System.currentTimeMillis(), sequence++, FILE_SUFFIX);
+			batches.put(name, geotriggers);
+			write(new File(getDeferredDir(context), name), geotriggers);
+		}
+		ModuleMetrics.increment(METRIC_DEFERRED);
+		schedule(context);
+	}
+
+	/**
+	 * Removes all deferred geotriggers, including the ones stored by an earlier process.
+	 *
+	 * @return the deferred batches in the order they were deferred
+	 */
+	static List<List<Geotrigger>> takeAll(Context context) {
+		List<List<Geotrigger>> result = new ArrayList<List<Geotrigger>>();
+		Map<String, Geotrigger> loaded = null;
+		synchronized(lock) {
+			File[] files = getDeferredDir(context).listFiles(DEFERRED_FILES);
+			if (files != null) {
+				Arrays.sort(files);
+				for (File file : files) {
+					List<Geotrigger> geotriggers = batches.remove(file.getName());
+					if (geotriggers == null) {
+						List<String> ids = read(file);
+						if (ids != null) {
+							if (loaded == null) {
+								loaded = getLoadedGeotriggers();
+							}
+							geotriggers = resolve(ids, loaded);
+						}
+					}
+					if (geotriggers != null) {
+						result.add(geotriggers);
+					} else {
+						ModuleMetrics.increment(METRIC_LOST);
+					}
+					file.delete();
+				}
+			}
+			// batches of which the file couldn't be written
+			result.addAll(batches.values());
+			batches.clear();
+		}
+		if (!result.isEmpty()) {
+			ModuleMetrics.increment(METRIC_RUNS);
+		}
+		return result;
+	}
+
+	private static Map<String, Geotrigger> getLoadedGeotriggers() {
+		Map<String, Geotrigger> result = new HashMap<String, Geotrigger>();
+		for (Geotrigger geotrigger : Plot.getLoadedGeotriggers()) {
+			result.put(geotrigger.getId(), geotrigger);
+		}
+		return result;
+	}
+
+	private static List<Geotrigger> resolve(List<String> ids, Map<String, Geotrigger> loaded) {
+		List<Geotrigger> result = new ArrayList<Geotrigger>(ids.size());
+		for (String id : ids) {
+			Geotrigger geotrigger = loaded.get(id);
+			if (geotrigger != null) {
+				result.add(geotrigger);
+			} else {
+				ModuleLog.d("Dropping deferred geotrigger '%s', it is no longer loaded", id);
+			}
+		}
+		return result;
+	}
+
+	static boolean hasDeferred(Context context) {
+		synchronized(lock) {
+			if (!batches.isEmpty()) {
+				return true;
+			}
+			String[] names = getDeferredDir(context).list(DEFERRED_FILES);
+			return names != null && names.length > 0;
+		}
+	}
+
+	/**
+	 * Schedules the job, unless it is already scheduled. An existing job isn't replaced, as that would move its
+	 * deadline further away with every deferred batch.
+	 */
+	static void schedule(Context context) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+			// JobScheduler needs Android 5.0
+			processNow(context);
+			return;
+		}
+		JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+		List<JobInfo> pendingJobs = scheduler.getAllPendingJobs();
+		if (pendingJobs != null) {
+			for (JobInfo job : pendingJobs) {
+				if (job.getId() == JOB_ID) {
+					return;
+				}
+			}
+		}
+
+		JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, GeotriggerJobService.class))
+				.setRequiredNetworkType(SettingsUtil.isGeotriggerDeferredRequireUnmetered() ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_NONE)
+				.setRequiresCharging(SettingsUtil.isGeotriggerDeferredRequireCharging())
+				.setOverrideDeadline(SettingsUtil.getGeotriggerDeferredMaxDelay() * 1000L)
+				.setPersisted(true)
+				.build();
+		if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+			ModuleLog.w("Couldn't schedule deferred geotrigger handling, processing deferred geotriggers now");
+			processNow(context);
+		}
+	}
+
+	private static void processNow(Context context) {
+		Intent intent = new Intent(context, GeotriggerHandlerService.class);
+		intent.setAction(ACTION_PROCESS_DEFERRED);
+		try {
+			context.startService(intent);
+		} catch (IllegalStateException e) {
+			// the app is in the background on Android 8.0 or newer, the geotriggers stay stored
+			ModuleLog.w(e, "Couldn't start geotrigger handler, deferred geotriggers are processed when scheduling succeeds");
+		}
+	}
+
+	private static File getDeferredDir(Context context) {
+		File dir = new File(context.getFilesDir(), DEFERRED_DIR);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			ModuleLog.w("Couldn't create directory for deferred geotriggers");
+		}
+		return dir;
+	}
+
+	private static void write(File file, List<Geotrigger> geotriggers) {
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				out.write(MAGIC);
+				out.writeByte(VERSION);
+				out.writeInt(geotriggers.size());
+				for (Geotrigger geotrigger : geotriggers) {
+					writeString(out, geotrigger.getId());
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			ModuleLog.w(e, "Couldn't store deferred geotriggers");
+			file.delete();
+		}
+	}
+
+	private static List<String> read(File file) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				byte[] magic = new byte[MAGIC.length];
+				in.readFully(magic);
+				if (!Arrays.equals(magic, MAGIC) || in.readByte() != VERSION) {
+					ModuleLog.w("Unknown format of deferred geotriggers in '%s'", file.getName());
+					return null;
+				}
+				int count = in.readInt();
+				List<String> result = new ArrayList<String>(count);
+				for (int i = 0; i < count; i++) {
+					result.add(readString(in));
+				}
+				return result;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			ModuleLog.w(e, "Couldn't read deferred geotriggers");
+			return null;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import org.appcelerator.kroll.KrollProxy;
+import org.appcelerator.kroll.annotations.Kroll;
+
+import com.plotprojects.retail.android.FilterableNotification;
+
+/**
+ * Notification passed to the notification filter that reads its fields from the underlying notification when
+ * they are accessed. Changes to the message and data are written straight to the notification.
+ */
+@Kroll.proxy
+public class FilterableNotificationProxy extends KrollProxy {
+	private final FilterableNotification notification;
+
+	public FilterableNotificationProxy(FilterableNotification notification) {
+		super();
+		this.notification = notification;
+	}
+
+	FilterableNotification getNotification() {
+		return notification;
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public String getIdentifier() {
+		return notification.getId();
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public String getMessage() {
+		return notification.getMessage();
+	}
+
+	@Kroll.setProperty @Kroll.method
+	public void setMessage(String message) {
+		notification.setMessage(message);
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public String getData() {
+		return notification.getData();
+	}
+
+	@Kroll.setProperty @Kroll.method
+	public void setData(String data) {
+		notification.setData(data);
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public Object getGeofenceLatitude() {
+		double latitude = notification.getGeofenceLatitude();
+		return Double.isNaN(latitude) ? null : latitude;
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public Object getGeofenceLongitude() {
+		double longitude = notification.getGeofenceLongitude();
+		return Double.isNaN(longitude) ? null : longitude;
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public String getTrigger() {
+		return notification.getTrigger();
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public int getDwellingMinutes() {
+		return notification.getDwellingMinutes();
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public int getMatchRange() {
+		return notification.getMatchRange();
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public String getNotificationHandlerType() {
+		return notification.getHandlerType();
+	}
+}
@@ -15,11 +15,14 @@
  */
 package com.plotprojects.titanium;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
 
 import android.app.Service;
 
@@ -27,21 +30,131 @@ import com.plotprojects.retail.android.Geotrigger;
 import com.plotprojects.retail.android.GeotriggerHandlerUtil.Batch;
 
 public final class GeotriggerBatches {
+    static final String METRIC_PASSED_THROUGH = "geotriggerBatchesPassedThrough";
+    static final String METRIC_DROPPED = "geotriggerBatchesDropped";
+    static final String METRIC_COLLAPSED = "geotriggerBatchesCollapsed";
+    static final String METRIC_DECISION_MILLIS = "geotriggerDecisionMillis";
+    static final String METRIC_DECISIONS = "geotriggerDecisions";
+    static final String METRIC_PEAK_PENDING = "geotriggerBatchesPeakPending";
+    
+    // the chunk id of an empty chunk, which doesn't have to be submitted
+    static final int NO_CHUNK = -1;
+
     private static final Object lock = new Object();
-    private static final Queue<BatchWithStartId> pendingBatches = new LinkedList<BatchWithStartId>();
+    private static final LinkedList<BatchWithStartId> pendingBatches = new LinkedList<BatchWithStartId>();
     private static final Map<String, BatchWithStartId> activeBatches = new HashMap<String, BatchWithStartId>();
     private static int batchId = 0;
+    private static int peakPending = 0;
+    
+    private GeotriggerBatches() {        
+    }
     
-    private GeotriggerBatches() {     
+    public static boolean addBatch(Batch batch, Service service, int startId) {
+        if (batch == null) {
+            return false;
+        }
+        return addBatch(batch, batch.getGeotriggers(), new ArrayList<Geotrigger>(), service, startId);
     }
     
-    public static void addBatch(Batch batch, Service service, int startId) {
+    /**
+     * Adds a batch of which only the given geotriggers are passed to the script. The geotriggers in
+     * <code>resolved</code> were already found to be handled and are marked handled together with the
+     * geotriggers returned by the script. The other geotriggers of the batch are left out when the batch is sent.
+     *
+     * When the maximum number of pending batches is reached the configured overflow policy is applied.
+     *
+     * @return whether the script has to be started for this batch
+     */
+    public static boolean addBatch(Batch batch, List<Geotrigger> geotriggers, List<Geotrigger> resolved, Service service, int startId) {
         if (batch == null) {
-            return;
+            return false;
+        }
+        int maxPending = SettingsUtil.getMaxPendingBatches();
+        OverflowPolicy policy = SettingsUtil.getPendingBatchOverflowPolicy();
+        BatchWithStartId newBatch = new BatchWithStartId(batch, geotriggers, resolved, service, startId);
+        synchronized(lock) {
+            if (maxPending > 0 && pendingBatches.size() >= maxPending) {
+                switch (policy) {
+                case PASS_THROUGH:
+                    ModuleLog.w("Too many pending geotrigger batches, marking all geotriggers of batch handled");
+                    ModuleMetrics.increment(METRIC_PASSED_THROUGH);
+                    newBatch.completeWithoutScript(geotriggers);
+                    return false;
+                case DROP_OLDEST:
+                    ModuleLog.w("Too many pending geotrigger batches, dropping oldest batch");
+                    ModuleMetrics.increment(METRIC_DROPPED);
+                    BatchWithStartId oldest = findPending(true);
+                    pendingBatches.remove(oldest);
+                    oldest.drop();
+                    break;
+                case COLLAPSE:
+                    ModuleLog.w("Too many pending geotrigger batches, collapsing batch into newest pending batch");
+                    ModuleMetrics.increment(METRIC_COLLAPSED);
+                    BatchWithStartId newest = findPending(false);
+                    pendingBatches.remove(newest);
+                    newest.collapse(newBatch);
+                    insertByDeadline(newest);
+                    return false;
+                }
+            }
+            insertByDeadline(newBatch);
+            if (pendingBatches.size() > peakPending) {
+                peakPending = pendingBatches.size();
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Adds the given batches as a single pending batch, so one run of the script handles all of them. The
+     * overflow policy isn't applied to these batches.
+     *
+     * @return whether the script has to be started
+     */
+    public static boolean addBatches(List<ResolvedBatch> batches, Service service, int startId) {
+        BatchWithStartId combined = null;
+        for (ResolvedBatch batch : batches) {
+            BatchWithStartId newBatch = new BatchWithStartId(batch.batch, batch.geotriggers, batch.resolved, service, startId);
+            if (combined == null) {
+                combined = newBatch;
+            } else {
+                combined.collapse(newBatch);
+            }
+        }
+        if (combined == null) {
+            return false;
         }
         synchronized(lock) {
-            pendingBatches.add(new BatchWithStartId(batch, service, startId));
+            insertByDeadline(combined);
+            if (pendingBatches.size() > peakPending) {
+                peakPending = pendingBatches.size();
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Inserts the batch before the first pending batch with a later deadline.
+     */
+    private static void insertByDeadline(BatchWithStartId batch) {
+        ListIterator<BatchWithStartId> it = pendingBatches.listIterator();
+        while (it.hasNext()) {
+            if (it.next().getDeadline() > batch.getDeadline()) {
+                it.previous();
+                break;
+            }
         }
+        it.add(batch);
+    }
+    
+    private static BatchWithStartId findPending(boolean oldest) {
+        BatchWithStartId result = null;
+        for (BatchWithStartId batch : pendingBatches) {
+            if (result == null || (oldest ? batch.getArrival() < result.getArrival() : batch.getArrival() >= result.getArrival())) {
+                result = batch;
+            }
+        }
+        return result;
     }
     
     public static GeotriggersAndId popBatch() {
@@ -52,7 +165,63 @@ public final class GeotriggerBatches {
                 return null;
             }
             activeBatches.put(newBatchId, batchWithStartId);
-            return new GeotriggersAndId(batchWithStartId.getBatch().getGeotriggers(), newBatchId);
+            return new GeotriggersAndId(batchWithStartId.getGeotriggers(), newBatchId);
+        }
+    }
+    
+    /**
+     * Returns the next chunk of at most <code>size</code> geotriggers of the batch with the given id. When
+     * <code>batchId</code> is null the next pending batch is started.
+     *
+     * @return the chunk, or null when there is no pending batch
+     */
+    public static GeotriggersAndId popChunk(String batchId, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        synchronized(lock) {
+            BatchWithStartId batchWithStartId;
+            if (batchId == null) {
+                batchWithStartId = pendingBatches.poll();
+                if (batchWithStartId == null) {
+                    return null;
+                }
+                batchId = Integer.toString(GeotriggerBatches.batchId++);
+                activeBatches.put(batchId, batchWithStartId);
+            } else {
+                batchWithStartId = activeBatches.get(batchId);
+                if (batchWithStartId == null) {
+                    throw new IllegalArgumentException(String.format("Unknown batch: %s", batchId));
+                }
+            }
+            
+            List<Geotrigger> all = batchWithStartId.getGeotriggers();
+            int start = batchWithStartId.getOffset();
+            int end = Math.min(all.size(), start + size);
+            int chunkId = batchWithStartId.chunkPopped(end);
+            return new GeotriggersAndId(new ArrayList<Geotrigger>(all.subList(start, end)), batchId, chunkId, all.size() - end);
+        }
+    }
+    
+    /**
+     * Adds the geotriggers the script returned for a chunk. The batch is sent when all geotriggers have been popped
+     * and every popped chunk has been submitted. Each chunk is submitted once, with the id it was popped with.
+     *
+     * @return whether the batch was sent
+     * @throws IllegalArgumentException when the chunk is unknown or was already submitted
+     */
+    public static boolean submitChunk(String batchId, int chunkId, List<Geotrigger> geotriggers) {
+        synchronized(lock) {
+            BatchWithStartId batchWithStartId = activeBatches.get(batchId);
+            if (batchWithStartId == null) {
+                return false;
+            }
+            batchWithStartId.chunkSubmitted(chunkId, geotriggers);
+            if (!batchWithStartId.isComplete()) {
+                return false;
+            }
+            sendBatch(batchId, batchWithStartId.getSubmitted());
+            return true;
         }
     }
     
@@ -60,7 +229,7 @@ public final class GeotriggerBatches {
         synchronized(lock) {
             BatchWithStartId batch = activeBatches.get(batchId);
             if (batch != null) {
-                return batch.getBatch().getGeotriggers();
+                return batch.getGeotriggers();
             }
             return null;
         }
@@ -70,45 +239,244 @@ public final class GeotriggerBatches {
         synchronized(lock) {
             BatchWithStartId batchWithStartId = activeBatches.remove(batchId);
             if (batchWithStartId != null) {
-                Batch batch = batchWithStartId.getBatch();
-                batch.markGeotriggersHandled(geotriggers);
-                
-                batchWithStartId.getService().stopSelf(batchWithStartId.getStartId());
+                batchWithStartId.send(geotriggers);
             }
         }
     }
     
+    public static int getPendingCount() {
+        synchronized(lock) {
+            return pendingBatches.size();
+        }
+    }
+    
+    public static int getActiveCount() {
+        synchronized(lock) {
+            return activeBatches.size();
+        }
+    }
+    
+    public static int getPeakPendingCount() {
+        synchronized(lock) {
+            return peakPending;
+        }
+    }
+    
     private static final class BatchWithStartId {
         private final Batch batch;
+        private final List<Geotrigger> geotriggers;
+        private final List<Geotrigger> resolved;
         private final Service service;
         private final int startId;
+        private final List<BatchWithStartId> collapsed = new ArrayList<BatchWithStartId>();
+        private List<Geotrigger> allGeotriggers;
+        private final List<Geotrigger> submitted = new ArrayList<Geotrigger>();
+        private int offset = 0;
+        private int nextChunkId = 0;
+        // the chunks that were popped and not submitted yet
+        private final Set<Integer> openChunks = new HashSet<Integer>();
+        private final long arrival;
+        private long deadline;
         
-        public BatchWithStartId(Batch batch, Service service, int startId) {
+        public BatchWithStartId(Batch batch, List<Geotrigger> geotriggers, List<Geotrigger> resolved, Service service, int startId) {
             this.batch = batch;
+            this.geotriggers = geotriggers;
+            this.resolved = resolved;
+            this.allGeotriggers = geotriggers;
             this.service = service;
             this.startId = startId;
+            ServiceStarts.opened(service, startId);
+            this.arrival = BatchScheduler.now();
+            this.deadline = BatchScheduler.geotriggerDeadline(arrival, geotriggers);
         }
-
+        
+        public long getArrival() {
+            return arrival;
+        }
+        
+        public long getDeadline() {
+            return deadline;
+        }
+        
+        /**
+         * @return the geotriggers of this batch and of the batches collapsed into it
+         */
+        public List<Geotrigger> getGeotriggers() {
+            return allGeotriggers;
+        }
+        
+        public void collapse(BatchWithStartId other) {
+            collapsed.add(other);
+            deadline = Math.min(deadline, other.deadline);
+            List<Geotrigger> combined = new ArrayList<Geotrigger>(allGeotriggers.size() + other.geotriggers.size());
+            combined.addAll(allGeotriggers);
+            combined.addAll(other.geotriggers);
+            allGeotriggers = combined;
+        }
+        
+        /**
+         * Sends the given geotriggers to the Plot batches they belong to.
+         *
+         * When batches were collapsed or combined, several Plot batches can contain a geotrigger with the same id,
+         * while the script returns only one of them. The result is therefore matched by id for every Plot batch.
+         */
+        public void send(List<Geotrigger> geotriggersToSend) {
+            if (collapsed.isEmpty()) {
+                complete(geotriggersToSend);
+                return;
+            }
+            Set<String> selected = new HashSet<String>();
+            for (Geotrigger geotrigger : geotriggersToSend) {
+                selected.add(geotrigger.getId());
+            }
+            completeSelected(selected);
+            for (BatchWithStartId other : collapsed) {
+                other.completeSelected(selected);
+            }
+        }
+        
+        private void completeSelected(Set<String> selected) {
+            List<Geotrigger> result = new ArrayList<Geotrigger>();
+            for (Geotrigger geotrigger : geotriggers) {
+                if (selected.contains(geotrigger.getId())) {
+                    result.add(geotrigger);
+                }
+            }
+            complete(result);
+        }
+        
+        public void complete(List<Geotrigger> geotriggersToSend) {
+            List<Geotrigger> handled = geotriggersToSend;
+            if (!resolved.isEmpty()) {
+                handled = new ArrayList<Geotrigger>(resolved);
+                handled.addAll(geotriggersToSend);
+            }
+            if (batch != null) {
+                batch.markGeotriggersHandled(handled);
+                BatchRecorder.recordGeotriggerDecision(batch, handled, true);
+            }
+            // deferred geotriggers are delivered by Plot again, so they must not be suppressed as recently handled
+            if (RecentlyHandledFilter.isEnabled() && batch != null) {
+                RecentlyHandledFilter.addGeotriggers(geotriggers);
+            }
+            if (GeotriggerDecisionCache.isEnabled()) {
+                GeotriggerDecisionCache.record(geotriggers, geotriggersToSend);
+            }
+            
+            finished();
+        }
+        
+        /**
+         * Marks the given and resolved geotriggers handled without recording them as decisions of the script.
+         */
+        public void completeWithoutScript(List<Geotrigger> geotriggersToSend) {
+            List<Geotrigger> handled = new ArrayList<Geotrigger>(resolved);
+            handled.addAll(geotriggersToSend);
+            if (batch != null) {
+                batch.markGeotriggersHandled(handled);
+                BatchRecorder.recordGeotriggerDecision(batch, handled, false);
+            }
+            finished();
+        }
+        
+        private void finished() {
+            ModuleMetrics.add(METRIC_DECISION_MILLIS, BatchScheduler.now() - arrival);
+            ModuleMetrics.increment(METRIC_DECISIONS);
+            ServiceStarts.finished(service, startId);
+        }
+        
+        /**
+         * Completes this batch and the batches collapsed into it without any of the geotriggers selected by the script.
+         */
+        public void drop() {
+            completeWithoutScript(new ArrayList<Geotrigger>());
+            for (BatchWithStartId other : collapsed) {
+                other.completeWithoutScript(new ArrayList<Geotrigger>());
+            }
+        }
+        
+        public int getOffset() {
+            return offset;
+        }
+        
+        public List<Geotrigger> getSubmitted() {
+            return submitted;
+        }
+        
+        /**
+         * @return the id of the chunk, or NO_CHUNK when it is empty
+         */
+        public int chunkPopped(int newOffset) {
+            if (newOffset == offset) {
+                return NO_CHUNK;
+            }
+            offset = newOffset;
+            int chunkId = nextChunkId++;
+            openChunks.add(chunkId);
+            return chunkId;
+        }
+        
+        public void chunkSubmitted(int chunkId, List<Geotrigger> geotriggers) {
+            if (chunkId == NO_CHUNK) {
+                if (!geotriggers.isEmpty()) {
+                    throw new IllegalArgumentException("An empty chunk can't be submitted with geotriggers");
+                }
+                return;
+            }
+            if (!openChunks.remove(chunkId)) {
+                throw new IllegalArgumentException(String.format("Unknown or already submitted chunk: %d", chunkId));
+            }
+            submitted.addAll(geotriggers);
+        }
+        
+        public boolean isComplete() {
+            return offset >= allGeotriggers.size() && openChunks.isEmpty();
+        }
+    }
+    
+    /**
+     * A batch together with the geotriggers to pass to the script and the geotriggers already found to be handled.
+     * The batch is null for deferred geotriggers, of which the Plot batch was already completed.
+     */
+    public static final class ResolvedBatch {
+        private final Batch batch;
+        private final List<Geotrigger> geotriggers;
+        private final List<Geotrigger> resolved;
+        
+        public ResolvedBatch(Batch batch, List<Geotrigger> geotriggers, List<Geotrigger> resolved) {
+            this.batch = batch;
+            this.geotriggers = geotriggers;
+            this.resolved = resolved;
+        }
+        
         public Batch getBatch() {
             return batch;
         }
         
-        public Service getService() {
-            return service;
+        public List<Geotrigger> getGeotriggers() {
+            return geotriggers;
         }
-
-        public int getStartId() {
-            return startId;
+        
+        public List<Geotrigger> getResolved() {
+            return resolved;
         }
     }
     
     public static final class GeotriggersAndId {
         private final List<Geotrigger> geotriggers;
         private final String id;
+        private final int chunkId;
+        private final int remaining;
         
         public GeotriggersAndId(List<Geotrigger> geotriggers, String id) {
+            this(geotriggers, id, NO_CHUNK, 0);
+        }
+        
+        public GeotriggersAndId(List<Geotrigger> geotriggers, String id, int chunkId, int remaining) {
             this.geotriggers = geotriggers;
             this.id = id;
+            this.chunkId = chunkId;
+            this.remaining = remaining;
         }
         
         public List<Geotrigger> getGeotriggers() {
@@ -117,5 +485,19 @@ public final class GeotriggerBatches {
         public String getId() {
             return id;
         }
+        
+        /**
+         * @return the id to submit the chunk with, or NO_CHUNK when the chunk is empty
+         */
+        public int getChunkId() {
+            return chunkId;
+        }
+        
+        /**
+         * @return the number of geotriggers of the batch that haven't been popped yet
+         */
+        public int getRemaining() {
+            return remaining;
+        }
     }
 }
@@ -0,0 +1,391 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.appcelerator.titanium.TiApplication;
+
+import com.plotprojects.retail.android.Geotrigger;
+
+/**
+ * Remembers whether the geotrigger handler marked a geotrigger as handled, so the same geotrigger can be resolved
+ * without starting the script until the decision expires.
+ *
+ * Decisions are keyed by a hash of all fields of the geotrigger, so a geotrigger of which the data has changed is
+ * passed to the script again. The least recently used decisions are dropped when the cache is full.
+ *
+ * The services are often started in a new process for a single batch, so the decisions are kept in the decisions
+ * file as well, the way the sent history index is kept. The file is read on the first lookup and written in the
+ * background shortly after decisions are recorded. When the other process wrote the file, it is read again and the
+ * decisions this process didn't write yet are kept. Decisions recorded by both processes at the same moment can be
+ * lost, in which case the script decides again.
+ */
+final class GeotriggerDecisionCache {
+	static final String METRIC_HITS = "geotriggerDecisionCacheHits";
+	static final String METRIC_MISSES = "geotriggerDecisionCacheMisses";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final String DECISIONS_FILE = "plot-geotrigger-decisions.bin";
+	private static final int DECISIONS_FILE_VERSION = 1;
+	private static final long WRITE_DELAY_MILLIS = 2000;
+
+	private static final Object lock = new Object();
+	private static final Map<String, Decision> decisions = new LinkedHashMap<String, Decision>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+			return size() > getCapacity();
+		}
+	};
+	// read from the settings when first needed and after the cache is configured, -1 until then
+	private static volatile int capacity = -1;
+	private static volatile long ttlMillis = -1;
+
+	// signals that the decisions file was written, cleared or configured by the other process
+	private static final PlotProcess.SharedState sharedState = new PlotProcess.SharedState("geotriggerdecisions");
+	private static boolean loaded = false;
+	// the decisions recorded since the decisions file was written
+	private static final Map<String, Decision> unwritten = new LinkedHashMap<String, Decision>();
+	private static boolean writeScheduled = false;
+	// incremented when the decisions are dropped, so a write that started before isn't stored afterwards
+	private static int clearCount = 0;
+	private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "plot-geotrigger-decisions");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static final Runnable write = new Runnable() {
+		public void run() {
+			writeDecisionsFile();
+		}
+	};
+
+	private GeotriggerDecisionCache() {
+	}
+
+	/**
+	 * The cache is also used when geotriggers are deferred, to apply the decisions of the script when Plot delivers the
+	 * deferred geotriggers again.
+	 */
+	static boolean isEnabled() {
+		return SettingsUtil.isGeotriggerDecisionCacheEnabled() || DeferredGeotriggers.isEnabled();
+	}
+
+	/**
+	 * Looks up the decisions for the given geotriggers. Geotriggers that were marked handled before are added to
+	 * <code>handled</code>, geotriggers that weren't are left out. The lookups are counted separately with
+	 * countLookups, once the resolution is final.
+	 *
+	 * @return the geotriggers without a cached decision
+	 */
+	static List<Geotrigger> resolve(List<Geotrigger> geotriggers, List<Geotrigger> handled) {
+		List<Geotrigger> misses = new ArrayList<Geotrigger>(geotriggers.size());
+		long now = System.currentTimeMillis();
+		synchronized(lock) {
+			ensureLoaded();
+			for (Geotrigger geotrigger : geotriggers) {
+				String key = key(geotrigger);
+				Decision decision = decisions.get(key);
+				if (decision != null && decision.expires <= now) {
+					decisions.remove(key);
+					decision = null;
+				}
+
+				if (decision == null) {
+					misses.add(geotrigger);
+				} else if (decision.handled) {
+					handled.add(geotrigger);
+				}
+			}
+		}
+		return misses;
+	}
+
+	static void countLookups(int lookups, int misses) {
+		ModuleMetrics.add(METRIC_HITS, lookups - misses);
+		ModuleMetrics.add(METRIC_MISSES, misses);
+	}
+
+	/**
+	 * Reads the capacity and time to live from the settings again. When they were changed the decisions are
+	 * dropped, and the other process reads the settings again as well.
+	 */
+	static void configure(boolean changed) {
+		synchronized(lock) {
+			readSettings();
+			if (changed) {
+				decisions.clear();
+				unwritten.clear();
+				clearCount++;
+				getDecisionsFile().delete();
+				sharedState.changed();
+			}
+		}
+	}
+
+	private static void readSettings() {
+		capacity = SettingsUtil.getGeotriggerDecisionCacheSize();
+		ttlMillis = SettingsUtil.getGeotriggerDecisionCacheTtl() * 1000L;
+	}
+
+	private static int getCapacity() {
+		if (capacity == -1) {
+			readSettings();
+		}
+		return capacity;
+	}
+
+	private static long getTtlMillis() {
+		if (ttlMillis == -1) {
+			readSettings();
+		}
+		return ttlMillis;
+	}
+
+	/**
+	 * Stores the decisions the script made for <code>evaluated</code>.
+	 */
+	static void record(List<Geotrigger> evaluated, List<Geotrigger> handled) {
+		Map<Geotrigger, Boolean> handledSet = new IdentityHashMap<Geotrigger, Boolean>();
+		for (Geotrigger geotrigger : handled) {
+			handledSet.put(geotrigger, Boolean.TRUE);
+		}
+
+		long expires = System.currentTimeMillis() + getTtlMillis();
+		synchronized(lock) {
+			ensureLoaded();
+			for (Geotrigger geotrigger : evaluated) {
+				Decision decision = new Decision(handledSet.containsKey(geotrigger), expires);
+				String key = key(geotrigger);
+				decisions.put(key, decision);
+				unwritten.put(key, decision);
+			}
+			scheduleWrite();
+		}
+	}
+
+	static void clear() {
+		synchronized(lock) {
+			decisions.clear();
+			unwritten.clear();
+			clearCount++;
+			getDecisionsFile().delete();
+			sharedState.changed();
+		}
+	}
+
+	/**
+	 * Reads the decisions file when it wasn't read yet or was changed by the other process. Call with the lock held.
+	 */
+	private static void ensureLoaded() {
+		if (sharedState.changedElsewhere()) {
+			decisions.clear();
+			readSettings();
+			loaded = false;
+		}
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		if (!readDecisionsFile()) {
+			// cleared or configured by the other process, or never written
+			unwritten.clear();
+			clearCount++;
+		}
+		for (Map.Entry<String, Decision> e : unwritten.entrySet()) {
+			decisions.put(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Writes the decisions file shortly, together with the decisions that are recorded in the meantime. Call with the
+	 * lock held.
+	 */
+	private static void scheduleWrite() {
+		if (!writeScheduled) {
+			writeScheduled = true;
+			writer.schedule(write, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static File getDecisionsFile() {
+		return new File(TiApplication.getInstance().getFilesDir(), DECISIONS_FILE);
+	}
+
+	/**
+	 * @return whether the decisions file exists
+	 */
+	private static boolean readDecisionsFile() {
+		File file = getDecisionsFile();
+		if (!file.exists()) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != DECISIONS_FILE_VERSION) {
+					return true;
+				}
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String key = in.readUTF();
+					boolean handled = in.readBoolean();
+					long expires = in.readLong();
+					if (expires > now) {
+						decisions.put(key, new Decision(handled, expires));
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			ModuleLog.w(e, "Couldn't read geotrigger decisions");
+			decisions.clear();
+		}
+		return true;
+	}
+
+	/**
+	 * Only called on the writer thread. The decisions are copied with the lock held and written without it.
+	 */
+	private static void writeDecisionsFile() {
+		Map<String, Decision> copy;
+		int copiedClearCount;
+		synchronized(lock) {
+			writeScheduled = false;
+			if (unwritten.isEmpty()) {
+				return;
+			}
+			// merge the decisions the other process wrote in the meantime
+			ensureLoaded();
+			copy = new LinkedHashMap<String, Decision>(decisions);
+			copiedClearCount = clearCount;
+			unwritten.clear();
+		}
+
+		File file = getDecisionsFile();
+		File tempFile = null;
+		try {
+			// both processes may write the decisions, so each writes its own temporary file
+			tempFile = File.createTempFile(DECISIONS_FILE, ".tmp", file.getParentFile());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try {
+				out.writeInt(DECISIONS_FILE_VERSION);
+				out.writeInt(copy.size());
+				for (Map.Entry<String, Decision> e : copy.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeBoolean(e.getValue().handled);
+					out.writeLong(e.getValue().expires);
+				}
+			} finally {
+				out.close();
+			}
+			synchronized(lock) {
+				if (copiedClearCount != clearCount) {
+					tempFile.delete();
+				} else if (!tempFile.renameTo(file)) {
+					ModuleLog.w("Couldn't replace geotrigger decisions");
+					tempFile.delete();
+				} else {
+					sharedState.changed();
+				}
+			}
+		} catch (IOException e) {
+			ModuleLog.w(e, "Couldn't write geotrigger decisions");
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		}
+	}
+
+	private static String key(Geotrigger geotrigger) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		update(digest, geotrigger.getId());
+		update(digest, geotrigger.getName());
+		update(digest, geotrigger.getData());
+		update(digest, geotrigger.getTrigger());
+		update(digest, Double.toString(geotrigger.getGeofenceLatitude()));
+		update(digest, Double.toString(geotrigger.getGeofenceLongitude()));
+		update(digest, Integer.toString(geotrigger.getDwellingMinutes()));
+		update(digest, Integer.toString(geotrigger.getMatchRange()));
+
+		byte[] hash = digest.digest();
+		char[] result = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			result[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+			result[i * 2 + 1] = HEX[hash[i] & 0xf];
+		}
+		return new String(result);
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		// prefix every field with its length, so moving characters from one field to the next changes the hash
+		if (value == null) {
+			updateLength(digest, -1);
+		} else {
+			byte[] bytes = value.getBytes(UTF8);
+			updateLength(digest, bytes.length);
+			digest.update(bytes);
+		}
+	}
+
+	private static void updateLength(MessageDigest digest, int length) {
+		digest.update((byte) (length >>> 24));
+		digest.update((byte) (length >>> 16));
+		digest.update((byte) (length >>> 8));
+		digest.update((byte) length);
+	}
+
+	private static final class Decision {
+		private final boolean handled;
+		private final long expires;
+
+		public Decision(boolean handled, long expires) {
+			this.handled = handled;
+			this.expires = expires;
+		}
+	}
+}
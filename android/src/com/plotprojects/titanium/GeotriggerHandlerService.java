@@ -15,15 +15,26 @@
  */
 package com.plotprojects.titanium;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.plotprojects.retail.android.Geotrigger;
 import com.plotprojects.retail.android.GeotriggerHandler;
 import com.plotprojects.retail.android.GeotriggerHandlerUtil;
 
 import android.content.Intent;
-import android.util.Log;
 import ti.modules.titanium.android.TiJSService;
 
 public final class GeotriggerHandlerService extends TiJSService implements GeotriggerHandler {
-    private final static String LOG_TAG = "PLOT/Titanium";
+    static final String ACTION_RUN_SCRIPT = "com.plotprojects.titanium.RUN_GEOTRIGGER_HANDLER";
+    
+    private final Runnable requestScriptRun = new Runnable() {
+        public void run() {
+            requestScriptRun();
+        }
+    };
     
     public GeotriggerHandlerService() {
         super("plotgeotriggerhandler.js");
@@ -31,25 +42,163 @@ public final class GeotriggerHandlerService extends TiJSService implements Geotr
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {      
-        if (GeotriggerHandlerUtil.isGeotriggerHandlerIntent(intent)) {
+        PlotProcess.recheckSharedState();
+        if (ACTION_RUN_SCRIPT.equals(intent.getAction())) {
+            // the pending batches keep the service running until they are completed
+            super.onStartCommand(intent, flags, startId);
+        } else if (DeferredGeotriggers.ACTION_PROCESS_DEFERRED.equals(intent.getAction())) {
+            if (processDeferred(intent, flags, startId)) {
+                return START_NOT_STICKY;
+            }
+        } else if (GeotriggerHandlerUtil.isGeotriggerHandlerIntent(intent)) {
             GeotriggerHandlerUtil.Batch batch = GeotriggerHandlerUtil.getBatch(intent, this);
             if (batch != null) {
                 if (SettingsUtil.isGeotriggerHandlerEnabled()) {
-                    GeotriggerBatches.addBatch(batch, this, startId); 
-                    return super.onStartCommand(intent, flags, startId);
+                    List<Geotrigger> resolved = new ArrayList<Geotrigger>();
+                    List<Geotrigger> candidates = removeRecentlyHandled(batch);
+                    List<Geotrigger> geotriggers = resolveCached(candidates, resolved);
+                    countCacheLookups(candidates, geotriggers);
+                    if (!geotriggers.isEmpty() && DeferredGeotriggers.isEnabled()) {
+                        // the Plot batch can't wait for the job, the deferred geotriggers are handled from the
+                        // decision cache when Plot delivers them again
+                        record(batch);
+                        batch.markGeotriggersHandled(resolved);
+                        BatchRecorder.recordGeotriggerDecision(batch, resolved, false);
+                        DeferredGeotriggers.defer(this, geotriggers);
+                    } else if (!geotriggers.isEmpty() || batch.getGeotriggers().isEmpty()) {
+                        record(batch);
+                        if (GeotriggerBatches.addBatch(batch, geotriggers, resolved, this, startId)) {
+                            startScript(intent, flags, startId, BatchScheduler.geotriggerDeadline(BatchScheduler.now(), geotriggers));
+                        }
+                        return START_NOT_STICKY;
+                    } else {
+                        ModuleLog.i("Skipping geotrigger handler, all geotriggers were resolved without the script");
+                        record(batch);
+                        batch.markGeotriggersHandled(resolved);
+                        BatchRecorder.recordGeotriggerDecision(batch, resolved, false);
+                    }
                 } else {
                     batch.markGeotriggersHandled(batch.getGeotriggers());
                 }
             } else {
-                Log.w(LOG_TAG, "Unable to obtain batch with geotriggers from intent");
+                ModuleLog.w("Unable to obtain batch with geotriggers from intent");
             }
         } else {
-            Log.w(LOG_TAG, String.format("Received unexpected intent with action: %s", intent.getAction()));
+            ModuleLog.w("Received unexpected intent with action: %s", intent.getAction());
         }
-        stopSelf(startId);
+        ServiceStarts.finished(this, startId);
         return START_NOT_STICKY;
     }
     
+    /**
+     * Removes the recently handled geotriggers from the batch. This happens before the cache is checked, so the cache
+     * is not used for them. Otherwise a geotrigger the script passed on would be handled again from the cache.
+     *
+     * @return the geotriggers that weren't recently handled
+     */
+    private static List<Geotrigger> removeRecentlyHandled(GeotriggerHandlerUtil.Batch batch) {
+        List<Geotrigger> geotriggers = batch.getGeotriggers();
+        if (RecentlyHandledFilter.isEnabled()) {
+            geotriggers = RecentlyHandledFilter.removeHandledGeotriggers(geotriggers);
+        }
+        return geotriggers;
+    }
+    
+    /**
+     * Removes the geotriggers with a cached decision. The geotriggers that were found to be handled are added to
+     * <code>resolved</code>.
+     *
+     * @return the geotriggers that have to be passed to the script
+     */
+    private static List<Geotrigger> resolveCached(List<Geotrigger> geotriggers, List<Geotrigger> resolved) {
+        if (GeotriggerDecisionCache.isEnabled()) {
+            return GeotriggerDecisionCache.resolve(geotriggers, resolved);
+        }
+        return geotriggers;
+    }
+    
+    private static void countCacheLookups(List<Geotrigger> candidates, List<Geotrigger> misses) {
+        if (GeotriggerDecisionCache.isEnabled()) {
+            GeotriggerDecisionCache.countLookups(candidates.size(), misses.size());
+        }
+    }
+    
+    /**
+     * Records the arrival of the batch when batch recording is enabled.
+     */
+    private static void record(GeotriggerHandlerUtil.Batch batch) {
+        if (BatchRecorder.isEnabled()) {
+            BatchRecorder.recordGeotriggerBatch(batch, batch.getGeotriggers());
+        }
+    }
+    
+    /**
+     * Combines all deferred geotriggers into one batch and starts the script for it. Their Plot batches were
+     * completed when they were deferred, so the decisions of the script are stored in the decision cache and used
+     * when Plot delivers the geotriggers again. A geotrigger that Plot delivered again before the job ran is passed
+     * to the script once.
+     *
+     * @return whether the script was started
+     */
+    private boolean processDeferred(Intent intent, int flags, int startId) {
+        List<GeotriggerBatches.ResolvedBatch> batches = new ArrayList<GeotriggerBatches.ResolvedBatch>();
+        List<Geotrigger> allGeotriggers = new ArrayList<Geotrigger>();
+        Set<String> ids = new HashSet<String>();
+        for (List<Geotrigger> deferred : DeferredGeotriggers.takeAll(this)) {
+            if (!SettingsUtil.isGeotriggerHandlerEnabled()) {
+                continue;
+            }
+            List<Geotrigger> geotriggers = new ArrayList<Geotrigger>(deferred.size());
+            for (Geotrigger geotrigger : deferred) {
+                if (ids.add(geotrigger.getId())) {
+                    geotriggers.add(geotrigger);
+                }
+            }
+            if (geotriggers.isEmpty()) {
+                continue;
+            }
+            batches.add(new GeotriggerBatches.ResolvedBatch(null, geotriggers, new ArrayList<Geotrigger>()));
+            allGeotriggers.addAll(geotriggers);
+        }
+        
+        if (!GeotriggerBatches.addBatches(batches, this, startId)) {
+            return false;
+        }
+        startScript(intent, flags, startId, BatchScheduler.geotriggerDeadline(BatchScheduler.now(), allGeotriggers));
+        return true;
+    }
+    
+    /**
+     * Starts the script, or defers it while notification filter batches are being processed.
+     */
+    private void startScript(Intent intent, int flags, int startId, long deadline) {
+        if (!BatchScheduler.deferGeotriggerScript(deadline, requestScriptRun)) {
+            super.onStartCommand(intent, flags, startId);
+        }
+    }
+    
+    /**
+     * Starts the script for a deferred batch through a new start request of this service, as the start request of
+     * the batch has already been handled.
+     */
+    private void requestScriptRun() {
+        Intent intent = new Intent(this, GeotriggerHandlerService.class);
+        intent.setAction(ACTION_RUN_SCRIPT);
+        try {
+            startService(intent);
+        } catch (IllegalStateException e) {
+            // the batch stays pending and is popped by the next run of the script
+            ModuleLog.w(e, "Couldn't start geotrigger handler for deferred batch");
+        }
+    }
+    
+    @Override
+    public void onDestroy() {
+        GeotriggerJobService.finishRunningJob(this);
+        ModuleLog.flush();
+        super.onDestroy();
+    }
+    
     @Override
     public void onTaskRemoved(Intent rootIntent) {
 
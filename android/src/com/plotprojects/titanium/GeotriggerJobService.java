@@ -0,0 +1,84 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+/**
+ * Job that processes the deferred geotrigger batches. The job is kept running until the geotrigger handler service
+ * has handled them, so the device stays awake while the script runs. When the service can't be started the job is
+ * rescheduled.
+ */
+public final class GeotriggerJobService extends JobService {
+    private static final Object lock = new Object();
+    private static GeotriggerJobService runningService;
+    private static JobParameters runningJob;
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        synchronized(lock) {
+            runningService = this;
+            runningJob = params;
+        }
+        Intent intent = new Intent(this, GeotriggerHandlerService.class);
+        intent.setAction(DeferredGeotriggers.ACTION_PROCESS_DEFERRED);
+        try {
+            startService(intent);
+        } catch (IllegalStateException e) {
+            // Android 8.0 and newer don't allow starting the service while the app is in the background, the
+            // deferred geotriggers stay stored and the job is retried later
+            ModuleLog.w(e, "Couldn't start geotrigger handler for deferred geotriggers, retrying later");
+            synchronized(lock) {
+                runningService = null;
+                runningJob = null;
+            }
+            jobFinished(params, true);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // the geotrigger handler service continues with the batches it already took
+        synchronized(lock) {
+            if (runningJob == params) {
+                runningService = null;
+                runningJob = null;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finishes the running job, if any. Schedules a new job when batches were deferred while the job was running.
+     */
+    static void finishRunningJob(Context context) {
+        synchronized(lock) {
+            if (runningJob != null) {
+                runningService.jobFinished(runningJob, false);
+                runningService = null;
+                runningJob = null;
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && DeferredGeotriggers.hasDeferred(context)) {
+            DeferredGeotriggers.schedule(context);
+        }
+    }
+}
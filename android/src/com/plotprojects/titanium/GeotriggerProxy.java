@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import org.appcelerator.kroll.KrollProxy;
+import org.appcelerator.kroll.annotations.Kroll;
+
+import com.plotprojects.retail.android.Geotrigger;
+
+/**
+ * Geotrigger passed to the geotrigger handler that reads its fields from the underlying geotrigger when they
+ * are accessed.
+ */
+@Kroll.proxy
+public class GeotriggerProxy extends KrollProxy {
+	private final Geotrigger geotrigger;
+
+	public GeotriggerProxy(Geotrigger geotrigger) {
+		super();
+		this.geotrigger = geotrigger;
+	}
+
+	Geotrigger getGeotrigger() {
+		return geotrigger;
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public String getIdentifier() {
+		return geotrigger.getId();
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public String getName() {
+		return geotrigger.getName();
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public String getData() {
+		return geotrigger.getData();
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public Object getGeofenceLatitude() {
+		double latitude = geotrigger.getGeofenceLatitude();
+		return Double.isNaN(latitude) ? null : latitude;
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public Object getGeofenceLongitude() {
+		double longitude = geotrigger.getGeofenceLongitude();
+		return Double.isNaN(longitude) ? null : longitude;
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public String getTrigger() {
+		return geotrigger.getTrigger();
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public int getDwellingMinutes() {
+		return geotrigger.getDwellingMinutes();
+	}
+
+	@Kroll.getProperty @Kroll.method
+	public int getMatchRange() {
+		return geotrigger.getMatchRange();
+	}
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import com.plotprojects.retail.android.SentGeotrigger;
+import com.plotprojects.retail.android.SentNotification;
+
+/**
+ * Streams the sent notification and geotrigger history to a file without converting it to JavaScript objects.
+ *
+ * The binary format starts with the magic bytes "PLTH" and a version byte, followed by records that are each
+ * prefixed with their length as a 32-bit integer. Strings are written as a 32-bit length (-1 for null) followed
+ * by UTF-8 bytes.
+ */
+final class HistoryExporter {
+	static final String FORMAT_BINARY = "binary";
+	static final String FORMAT_CSV = "csv";
+
+	private static final byte[] BINARY_MAGIC = { 'P', 'L', 'T', 'H' };
+	private static final byte BINARY_VERSION = 1;
+	private static final byte RECORD_NOTIFICATION = 'N';
+	private static final byte RECORD_GEOTRIGGER = 'G';
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int PROGRESS_INTERVAL = 100;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String CSV_HEADER = "type,identifier,matchIdentifier,message,data,geofenceLatitude,geofenceLongitude,"
+			+ "trigger,dwellingMinutes,matchRange,notificationHandlerType,dateSent,dateOpenedOrHandled,isOpenedOrHandled";
+
+	interface ProgressListener {
+		void onProgress(int exported, int total);
+	}
+
+	private HistoryExporter() {
+	}
+
+	static boolean isSupportedFormat(String format) {
+		return FORMAT_BINARY.equals(format) || FORMAT_CSV.equals(format);
+	}
+
+	/**
+	 * Writes all records sent after <code>since</code> to <code>file</code>. Records sent at exactly
+	 * <code>since</code> are written too, unless their key is in <code>sinceKeys</code>, so records sent in the same
+	 * millisecond as the last record of the previous export aren't skipped. The file is written to a temporary file
+	 * first and renamed when complete, so readers never see a partial export.
+	 *
+	 * @return the highest date sent that was exported together with the keys of the records sent at that time, or
+	 *         <code>since</code> and <code>sinceKeys</code> when nothing was exported
+	 */
+	static Watermark export(File file, String format, boolean gzip, long since, Collection<String> sinceKeys,
+			Collection<SentNotification> notifications, Collection<SentGeotrigger> geotriggers,
+			ProgressListener listener) throws IOException {
+		Set<String> exportedKeys = new HashSet<String>(sinceKeys);
+		long watermark = since;
+		List<String> watermarkKeys = new ArrayList<String>(sinceKeys);
+
+		List<SentNotification> selectedNotifications = new ArrayList<SentNotification>();
+		for (SentNotification notification : notifications) {
+			String key = getKey(RECORD_NOTIFICATION, notification.getId(), notification.getMatchId());
+			if (notification.getDateSent() > since || (notification.getDateSent() == since && exportedKeys.add(key))) {
+				selectedNotifications.add(notification);
+				if (notification.getDateSent() > watermark) {
+					watermark = notification.getDateSent();
+					watermarkKeys.clear();
+				}
+				if (notification.getDateSent() == watermark) {
+					watermarkKeys.add(key);
+				}
+			}
+		}
+		List<SentGeotrigger> selectedGeotriggers = new ArrayList<SentGeotrigger>();
+		for (SentGeotrigger geotrigger : geotriggers) {
+			String key = getKey(RECORD_GEOTRIGGER, geotrigger.getId(), geotrigger.getMatchId());
+			if (geotrigger.getDateSent() > since || (geotrigger.getDateSent() == since && exportedKeys.add(key))) {
+				selectedGeotriggers.add(geotrigger);
+				if (geotrigger.getDateSent() > watermark) {
+					watermark = geotrigger.getDateSent();
+					watermarkKeys.clear();
+				}
+				if (geotrigger.getDateSent() == watermark) {
+					watermarkKeys.add(key);
+				}
+			}
+		}
+
+		// a unique name, so concurrent exports to the same file don't write to the same temporary file
+		File tempFile = File.createTempFile(file.getName() + ".export", ".tmp", file.getAbsoluteFile().getParentFile());
+		boolean moved = false;
+		try {
+			FileOutputStream fileStream = new FileOutputStream(tempFile);
+			try {
+				FileChannel channel = fileStream.getChannel();
+				OutputStream out = Channels.newOutputStream(channel);
+				if (gzip) {
+					out = new GZIPOutputStream(out, BUFFER_SIZE);
+				}
+				out = new BufferedOutputStream(out, BUFFER_SIZE);
+
+				if (FORMAT_CSV.equals(format)) {
+					writeCsv(out, selectedNotifications, selectedGeotriggers, listener);
+				} else {
+					writeBinary(out, selectedNotifications, selectedGeotriggers, listener);
+				}
+				out.close();
+			} finally {
+				fileStream.close();
+			}
+
+			if (!tempFile.renameTo(file)) {
+				throw new IOException(String.format("Couldn't move export to '%s'", file.getPath()));
+			}
+			moved = true;
+		} finally {
+			if (!moved) {
+				tempFile.delete();
+			}
+		}
+		return new Watermark(watermark, watermarkKeys);
+	}
+
+	/**
+	 * @return the key that identifies a record in a watermark
+	 */
+	private static String getKey(byte type, String id, String matchId) {
+		return (char) type + ":" + id + ":" + matchId;
+	}
+
+	private static void writeBinary(OutputStream stream,
+			List<SentNotification> notifications, List<SentGeotrigger> geotriggers,
+			ProgressListener listener) throws IOException {
+		DataOutputStream out = new DataOutputStream(stream);
+		out.write(BINARY_MAGIC);
+		out.writeByte(BINARY_VERSION);
+
+		ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(512);
+		DataOutputStream record = new DataOutputStream(recordBuffer);
+		int total = notifications.size() + geotriggers.size();
+		int exported = 0;
+
+		for (SentNotification notification : notifications) {
+			recordBuffer.reset();
+			record.writeByte(RECORD_NOTIFICATION);
+			writeString(record, notification.getId());
+			writeString(record, notification.getMatchId());
+			writeString(record, notification.getMessage());
+			writeString(record, notification.getData());
+			record.writeDouble(notification.getGeofenceLatitude());
+			record.writeDouble(notification.getGeofenceLongitude());
+			writeString(record, notification.getTrigger());
+			record.writeInt(notification.getDwellingMinutes());
+			record.writeInt(notification.getMatchRange());
+			writeString(record, notification.getHandlerType());
+			record.writeLong(notification.getDateSent());
+			record.writeLong(notification.getDateOpened());
+			record.writeBoolean(notification.isOpened());
+			record.flush();
+
+			out.writeInt(recordBuffer.size());
+			recordBuffer.writeTo(out);
+			exported = reportProgress(listener, exported + 1, total);
+		}
+
+		for (SentGeotrigger geotrigger : geotriggers) {
+			recordBuffer.reset();
+			record.writeByte(RECORD_GEOTRIGGER);
+			writeString(record, geotrigger.getId());
+			writeString(record, geotrigger.getMatchId());
+			writeString(record, geotrigger.getName());
+			writeString(record, geotrigger.getData());
+			record.writeDouble(geotrigger.getGeofenceLatitude());
+			record.writeDouble(geotrigger.getGeofenceLongitude());
+			writeString(record, geotrigger.getTrigger());
+			record.writeInt(geotrigger.getDwellingMinutes());
+			record.writeInt(geotrigger.getMatchRange());
+			writeString(record, null);
+			record.writeLong(geotrigger.getDateSent());
+			record.writeLong(geotrigger.getDateHandled());
+			record.writeBoolean(geotrigger.isHandled());
+			record.flush();
+
+			out.writeInt(recordBuffer.size());
+			recordBuffer.writeTo(out);
+			exported = reportProgress(listener, exported + 1, total);
+		}
+
+		out.flush();
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeCsv(OutputStream stream,
+			List<SentNotification> notifications, List<SentGeotrigger> geotriggers,
+			ProgressListener listener) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(stream, UTF8), BUFFER_SIZE);
+		out.write(CSV_HEADER);
+		out.write('\n');
+
+		int total = notifications.size() + geotriggers.size();
+		int exported = 0;
+
+		for (SentNotification notification : notifications) {
+			out.write("notification,");
+			writeCsvField(out, notification.getId());
+			writeCsvField(out, notification.getMatchId());
+			writeCsvField(out, notification.getMessage());
+			writeCsvField(out, notification.getData());
+			writeCsvField(out, notification.getGeofenceLatitude());
+			writeCsvField(out, notification.getGeofenceLongitude());
+			writeCsvField(out, notification.getTrigger());
+			writeCsvField(out, Integer.toString(notification.getDwellingMinutes()));
+			writeCsvField(out, Integer.toString(notification.getMatchRange()));
+			writeCsvField(out, notification.getHandlerType());
+			writeCsvField(out, Long.toString(notification.getDateSent()));
+			writeCsvField(out, Long.toString(notification.getDateOpened()));
+			out.write(Boolean.toString(notification.isOpened()));
+			out.write('\n');
+			exported = reportProgress(listener, exported + 1, total);
+		}
+
+		for (SentGeotrigger geotrigger : geotriggers) {
+			out.write("geotrigger,");
+			writeCsvField(out, geotrigger.getId());
+			writeCsvField(out, geotrigger.getMatchId());
+			writeCsvField(out, geotrigger.getName());
+			writeCsvField(out, geotrigger.getData());
+			writeCsvField(out, geotrigger.getGeofenceLatitude());
+			writeCsvField(out, geotrigger.getGeofenceLongitude());
+			writeCsvField(out, geotrigger.getTrigger());
+			writeCsvField(out, Integer.toString(geotrigger.getDwellingMinutes()));
+			writeCsvField(out, Integer.toString(geotrigger.getMatchRange()));
+			writeCsvField(out, null);
+			writeCsvField(out, Long.toString(geotrigger.getDateSent()));
+			writeCsvField(out, Long.toString(geotrigger.getDateHandled()));
+			out.write(Boolean.toString(geotrigger.isHandled()));
+			out.write('\n');
+			exported = reportProgress(listener, exported + 1, total);
+		}
+
+		out.flush();
+	}
+
+	private static void writeCsvField(Writer out, double value) throws IOException {
+		writeCsvField(out, Double.isNaN(value) ? null : Double.toString(value));
+	}
+
+	private static void writeCsvField(Writer out, String value) throws IOException {
+		if (value != null) {
+			if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+				out.write('"');
+				out.write(value.replace("\"", "\"\""));
+				out.write('"');
+			} else {
+				out.write(value);
+			}
+		}
+		out.write(',');
+	}
+
+	private static int reportProgress(ProgressListener listener, int exported, int total) {
+		if (listener != null && (exported % PROGRESS_INTERVAL == 0 || exported == total)) {
+			listener.onProgress(exported, total);
+		}
+		return exported;
+	}
+
+	/**
+	 * The date sent of the last exported records and their keys, to pass to the next incremental export.
+	 */
+	static final class Watermark {
+		private final long time;
+		private final List<String> keys;
+
+		public Watermark(long time, List<String> keys) {
+			this.time = time;
+			this.keys = keys;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public List<String> getKeys() {
+			return keys;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Weak reference that is equal to another reference to the same object, for use as the key of a map that compares
+ * objects by identity without keeping them alive. Look up entries with a reference without a queue and put them
+ * with a reference that is registered with the queue the map is purged from.
+ */
+final class IdentityReference extends WeakReference<Object> {
+	private final int hash;
+
+	IdentityReference(Object referent, ReferenceQueue<Object> queue) {
+		super(referent, queue);
+		hash = System.identityHashCode(referent);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof IdentityReference)) {
+			return false;
+		}
+		Object referent = get();
+		return referent != null && referent == ((IdentityReference) other).get();
+	}
+}
@@ -16,12 +16,10 @@
 package com.plotprojects.titanium;
 
 import java.util.*;
-import android.util.Log;
 import com.plotprojects.retail.android.*;
 
 @SuppressWarnings("unchecked") //required for Kroll
 public final class JsonUtil {
-	private final static String LOG_TAG = "PLOT/Titanium";
 	
 	private final static String KEY_ID = "identifier";
 	private final static String KEY_MATCH_ID = "matchIdentifier";
@@ -39,22 +37,67 @@ public final class JsonUtil {
 	private final static String KEY_DATE_HANDLED = "dateHandled";
 	private final static String KEY_IS_OPENED = "isOpened";
 	private final static String KEY_IS_HANDLED = "isHandled";
+
+	// the number of keys of each kind of map, so the maps are created large enough
+	private final static int NOTIFICATION_KEYS = 9;
+	private final static int GEOTRIGGER_KEYS = 8;
+	private final static int NOTIFICATION_TRIGGER_KEYS = 8;
+	private final static int SENT_NOTIFICATION_KEYS = 13;
+	private final static int SENT_GEOTRIGGER_KEYS = 11;
+
+	// loaded notifications and geotriggers are converted again on every call, while they rarely change
+	private final static SnapshotCache<Geotrigger> GEOTRIGGER_SNAPSHOTS = new SnapshotCache<Geotrigger>();
+	private final static SnapshotCache<NotificationTrigger> NOTIFICATION_TRIGGER_SNAPSHOTS = new SnapshotCache<NotificationTrigger>();
+
+	private final static ParallelMarshaller.Converter<FilterableNotification> NOTIFICATION_CONVERTER = new ParallelMarshaller.Converter<FilterableNotification>() {
+		public HashMap<String, Object> convert(FilterableNotification notification) {
+			return notificationToMap(notification);
+		}
+	};
+	private final static ParallelMarshaller.Converter<Geotrigger> GEOTRIGGER_CONVERTER = new ParallelMarshaller.Converter<Geotrigger>() {
+		public HashMap<String, Object> convert(Geotrigger geotrigger) {
+			return geotriggerToMap(geotrigger);
+		}
+	};
+	private final static ParallelMarshaller.Converter<NotificationTrigger> NOTIFICATION_TRIGGER_CONVERTER = new ParallelMarshaller.Converter<NotificationTrigger>() {
+		public HashMap<String, Object> convert(NotificationTrigger notification) {
+			return notificationTriggerToMap(notification);
+		}
+	};
+	private final static ParallelMarshaller.Converter<SentNotification> SENT_NOTIFICATION_CONVERTER = new ParallelMarshaller.Converter<SentNotification>() {
+		public HashMap<String, Object> convert(SentNotification notification) {
+			return sentNotificationToMap(notification);
+		}
+	};
+	private final static ParallelMarshaller.Converter<SentGeotrigger> SENT_GEOTRIGGER_CONVERTER = new ParallelMarshaller.Converter<SentGeotrigger>() {
+		public HashMap<String, Object> convert(SentGeotrigger geotrigger) {
+			return sentGeotriggerToMap(geotrigger);
+		}
+	};
 				
+	private static HashMap<String, Object> newMap(int keys) {
+		return new HashMap<String, Object>(keys * 4 / 3 + 1);
+	}
+
+	private static <T> Map<T, Boolean> identitySet(List<T> items) {
+		Map<T, Boolean> result = new IdentityHashMap<T, Boolean>();
+		for (T item : items) {
+			result.put(item, Boolean.TRUE);
+		}
+		return result;
+	}
+
+	private static Double toCoordinate(double value) {
+		return Double.isNaN(value) ? null : Double.valueOf(value);
+	}
+
 	public static HashMap<String, Object> notificationToMap(FilterableNotification notification) {
-		HashMap<String, Object> jsonNotification = new HashMap<String, Object>();
+		HashMap<String, Object> jsonNotification = newMap(NOTIFICATION_KEYS);
 		jsonNotification.put(KEY_ID, notification.getId());
 		jsonNotification.put(KEY_MESSAGE, notification.getMessage());
 		jsonNotification.put(KEY_DATA, notification.getData());
-		if (!Double.isNaN(notification.getGeofenceLatitude())) {
-			jsonNotification.put(KEY_GEOFENCE_LATITUDE, notification.getGeofenceLatitude());
-		} else {
-			jsonNotification.put(KEY_GEOFENCE_LATITUDE, null);
-		}
-		if (!Double.isNaN(notification.getGeofenceLongitude())) {
-			jsonNotification.put(KEY_GEOFENCE_LONGITUDE, notification.getGeofenceLongitude());
-		} else {
-			jsonNotification.put(KEY_GEOFENCE_LONGITUDE, null);
-		}
+		jsonNotification.put(KEY_GEOFENCE_LATITUDE, toCoordinate(notification.getGeofenceLatitude()));
+		jsonNotification.put(KEY_GEOFENCE_LONGITUDE, toCoordinate(notification.getGeofenceLongitude()));
 		jsonNotification.put(KEY_TRIGGER, notification.getTrigger());
 		jsonNotification.put(KEY_DWELLING_MINUTES, notification.getDwellingMinutes());
 		jsonNotification.put(KEY_MATCH_RANGE, notification.getMatchRange());
@@ -63,13 +106,7 @@ public final class JsonUtil {
 	}
 	
 	public static HashMap<String, Object>[] notificationsToMap(List<FilterableNotification> notifications) {
-		HashMap<String, Object>[] result = new HashMap[notifications.size()];
-		int i = 0;
-		for (FilterableNotification notification : notifications) {
-			result[i] = notificationToMap(notification);
-			i++;
-		}
-		return result;
+		return ParallelMarshaller.convert(notifications, NOTIFICATION_CONVERTER);
 	}
 	
 	private static Map<String, FilterableNotification> indexFilterableNotification(List<FilterableNotification> notifications) {
@@ -80,47 +117,73 @@ public final class JsonUtil {
 		return result;
 	}
 	
+	public static FilterableNotificationProxy[] notificationsToProxies(List<FilterableNotification> notifications) {
+		FilterableNotificationProxy[] result = new FilterableNotificationProxy[notifications.size()];
+		int i = 0;
+		for (FilterableNotification notification : notifications) {
+			result[i] = new FilterableNotificationProxy(notification);
+			i++;
+		}
+		return result;
+	}
+	
 	public static List<FilterableNotification> getNotifications(Object[] jsonNotifications, List<FilterableNotification> notifications) {
-		Map<String, FilterableNotification> notificationsIndexed = indexFilterableNotification(notifications);
+		Map<String, FilterableNotification> notificationsIndexed = null;
+		Map<FilterableNotification, Boolean> batchNotifications = null;
 		
 		List<FilterableNotification> result = new ArrayList<FilterableNotification>();
+		int missing = 0;
 		
 		for (Object obj: jsonNotifications) {
+			if (obj instanceof FilterableNotificationProxy) {
+				// changes were already written to the notification
+				FilterableNotification notification = ((FilterableNotificationProxy) obj).getNotification();
+				if (batchNotifications == null) {
+					batchNotifications = identitySet(notifications);
+				}
+				if (!batchNotifications.containsKey(notification)) {
+					// a proxy of another batch
+					ModuleLog.d("Notification with id '%s' isn't part of this batch", notification.getId());
+					missing++;
+					continue;
+				}
+				result.add(notification);
+				continue;
+			}
 			if (!(obj instanceof Map)) {
 				throw new IllegalArgumentException("notifications must contains objects");
 			}
 			
+			if (notificationsIndexed == null) {
+				notificationsIndexed = indexFilterableNotification(notifications);
+			}
 			Map<String, String> jsonNotification = (Map<String, String>) obj;
 			String id = jsonNotification.get(KEY_ID);
 			FilterableNotification notification = notificationsIndexed.get(id);
 			if (notification == null) {
-				Log.w(LOG_TAG, String.format("Couldn't find notification with id '%s' in Notification Filter", id));
+				ModuleLog.d("Couldn't find notification with id '%s' in Notification Filter", id);
+				missing++;
 				continue;
 			}
 			notification.setMessage(jsonNotification.get(KEY_MESSAGE));
 			notification.setData(jsonNotification.get(KEY_DATA));
 			result.add(notification);
 		}
+		if (missing > 0) {
+			ModuleLog.w("Couldn't find %d notifications in Notification Filter", missing);
+		}
 		
 		return result;
 	}
 
 
 	public static HashMap<String, Object> geotriggerToMap(Geotrigger geotrigger) {
-		HashMap<String, Object> jsonGeotrigger = new HashMap<String, Object>();
+		HashMap<String, Object> jsonGeotrigger = newMap(GEOTRIGGER_KEYS);
 		jsonGeotrigger.put(KEY_ID, geotrigger.getId());
 		jsonGeotrigger.put(KEY_NAME, geotrigger.getName());
 		jsonGeotrigger.put(KEY_DATA, geotrigger.getData());
-		if (!Double.isNaN(geotrigger.getGeofenceLatitude())) {
-			jsonGeotrigger.put(KEY_GEOFENCE_LATITUDE, geotrigger.getGeofenceLatitude());
-		} else {
-			jsonGeotrigger.put(KEY_GEOFENCE_LATITUDE, null);
-		}
-		if (!Double.isNaN(geotrigger.getGeofenceLongitude())) {
-			jsonGeotrigger.put(KEY_GEOFENCE_LONGITUDE, geotrigger.getGeofenceLongitude());
-		} else {
-			jsonGeotrigger.put(KEY_GEOFENCE_LONGITUDE, null);
-		}		
+		jsonGeotrigger.put(KEY_GEOFENCE_LATITUDE, toCoordinate(geotrigger.getGeofenceLatitude()));
+		jsonGeotrigger.put(KEY_GEOFENCE_LONGITUDE, toCoordinate(geotrigger.getGeofenceLongitude()));
 		jsonGeotrigger.put(KEY_TRIGGER, geotrigger.getTrigger());
 		jsonGeotrigger.put(KEY_DWELLING_MINUTES, geotrigger.getDwellingMinutes());
 		jsonGeotrigger.put(KEY_MATCH_RANGE, geotrigger.getMatchRange());
@@ -128,13 +191,15 @@ public final class JsonUtil {
 	}
 	
 	public static HashMap<String, Object>[] geotriggersToMap(List<Geotrigger> geotriggers) {
-		HashMap<String, Object>[] result = new HashMap[geotriggers.size()];
-		int i = 0;
-		for (Geotrigger geotrigger : geotriggers) {
-			result[i] = geotriggerToMap(geotrigger);
-			i++;
-		}
-		return result;
+		return ParallelMarshaller.convert(geotriggers, GEOTRIGGER_CONVERTER);
+	}
+	
+	/**
+	 * Converts geotriggers loaded by Plot. Objects that were converted before return the same map, so the maps must
+	 * not be changed.
+	 */
+	public static HashMap<String, Object>[] loadedGeotriggersToMap(List<Geotrigger> geotriggers) {
+		return GEOTRIGGER_SNAPSHOTS.convert(geotriggers, GEOTRIGGER_CONVERTER);
 	}
 	
 	private static Map<String, Geotrigger> indexGeotrigger(List<Geotrigger> geotriggers) {
@@ -145,76 +210,90 @@ public final class JsonUtil {
 		return result;
 	}
 	
+	public static GeotriggerProxy[] geotriggersToProxies(List<Geotrigger> geotriggers) {
+		GeotriggerProxy[] result = new GeotriggerProxy[geotriggers.size()];
+		int i = 0;
+		for (Geotrigger geotrigger : geotriggers) {
+			result[i] = new GeotriggerProxy(geotrigger);
+			i++;
+		}
+		return result;
+	}
+	
 	public static List<Geotrigger> getGeotriggers(Object[] jsonGeotriggers, List<Geotrigger> geotriggers) {
-		Map<String, Geotrigger> geotriggersIndexed = indexGeotrigger(geotriggers);
+		Map<String, Geotrigger> geotriggersIndexed = null;
+		Map<Geotrigger, Boolean> batchGeotriggers = null;
 		
 		List<Geotrigger> result = new ArrayList<Geotrigger>();
+		int missing = 0;
 		
 		for (Object obj: jsonGeotriggers) {
+			if (obj instanceof GeotriggerProxy) {
+				Geotrigger geotrigger = ((GeotriggerProxy) obj).getGeotrigger();
+				if (batchGeotriggers == null) {
+					batchGeotriggers = identitySet(geotriggers);
+				}
+				if (!batchGeotriggers.containsKey(geotrigger)) {
+					// a proxy of another batch
+					ModuleLog.d("Geotrigger with id '%s' isn't part of this batch", geotrigger.getId());
+					missing++;
+					continue;
+				}
+				result.add(geotrigger);
+				continue;
+			}
 			if (!(obj instanceof Map)) {
 				throw new IllegalArgumentException("geotriggers must contain objects");
 			}
 			
+			if (geotriggersIndexed == null) {
+				geotriggersIndexed = indexGeotrigger(geotriggers);
+			}
 			Map<String, String> jsonGeotrigger = (Map<String, String>) obj;
 			String id = jsonGeotrigger.get(KEY_ID);
 			Geotrigger geotrigger = geotriggersIndexed.get(id);
 			if (geotrigger == null) {
-				Log.w(LOG_TAG, String.format("Couldn't find geotrigger with id '%s' in Geotrigger Handler", id));
+				ModuleLog.d("Couldn't find geotrigger with id '%s' in Geotrigger Handler", id);
+				missing++;
 				continue;
 			}
 			result.add(geotrigger);
 		}
+		if (missing > 0) {
+			ModuleLog.w("Couldn't find %d geotriggers in Geotrigger Handler", missing);
+		}
 		
 		return result;
 	}
 
 	public static HashMap<String, Object> notificationTriggerToMap(NotificationTrigger notification) {
-		HashMap<String, Object> jsonNotification = new HashMap<String, Object>();
+		HashMap<String, Object> jsonNotification = newMap(NOTIFICATION_TRIGGER_KEYS);
 		jsonNotification.put(KEY_ID, notification.getId());
 		jsonNotification.put(KEY_MESSAGE, notification.getMessage());
 		jsonNotification.put(KEY_DATA, notification.getData());
-		if (!Double.isNaN(notification.getGeofenceLatitude())) {
-			jsonNotification.put(KEY_GEOFENCE_LATITUDE, notification.getGeofenceLatitude());
-		} else {
-			jsonNotification.put(KEY_GEOFENCE_LATITUDE, null);
-		}
-		if (!Double.isNaN(notification.getGeofenceLongitude())) {
-			jsonNotification.put(KEY_GEOFENCE_LONGITUDE, notification.getGeofenceLongitude());
-		} else {
-			jsonNotification.put(KEY_GEOFENCE_LONGITUDE, null);
-		}
+		jsonNotification.put(KEY_GEOFENCE_LATITUDE, toCoordinate(notification.getGeofenceLatitude()));
+		jsonNotification.put(KEY_GEOFENCE_LONGITUDE, toCoordinate(notification.getGeofenceLongitude()));
 		jsonNotification.put(KEY_TRIGGER, notification.getTrigger());
 		jsonNotification.put(KEY_DWELLING_MINUTES, notification.getDwellingMinutes());
 		jsonNotification.put(KEY_MATCH_RANGE, notification.getMatchRange());
 		return jsonNotification;
 	}
 	
+	/**
+	 * Objects that were converted before return the same map, so the maps must not be changed.
+	 */
 	public static HashMap<String, Object>[] notificationTriggersToMap(List<NotificationTrigger> notifications) {
-		HashMap<String, Object>[] result = new HashMap[notifications.size()];
-		int i = 0;
-		for (NotificationTrigger notification : notifications) {
-			result[i] = notificationTriggerToMap(notification);
-			i++;
-		}
-		return result;
+		return NOTIFICATION_TRIGGER_SNAPSHOTS.convert(notifications, NOTIFICATION_TRIGGER_CONVERTER);
 	}
 	
 	public static HashMap<String, Object> sentNotificationToMap(SentNotification notification) {
-		HashMap<String, Object> jsonNotification = new HashMap<String, Object>();
+		HashMap<String, Object> jsonNotification = newMap(SENT_NOTIFICATION_KEYS);
 		jsonNotification.put(KEY_ID, notification.getId());
 		jsonNotification.put(KEY_MATCH_ID, notification.getMatchId());
 		jsonNotification.put(KEY_MESSAGE, notification.getMessage());
 		jsonNotification.put(KEY_DATA, notification.getData());
-		if (!Double.isNaN(notification.getGeofenceLatitude())) {
-			jsonNotification.put(KEY_GEOFENCE_LATITUDE, notification.getGeofenceLatitude());
-		} else {
-			jsonNotification.put(KEY_GEOFENCE_LATITUDE, null);
-		}
-		if (!Double.isNaN(notification.getGeofenceLongitude())) {
-			jsonNotification.put(KEY_GEOFENCE_LONGITUDE, notification.getGeofenceLongitude());
-		} else {
-			jsonNotification.put(KEY_GEOFENCE_LONGITUDE, null);
-		}
+		jsonNotification.put(KEY_GEOFENCE_LATITUDE, toCoordinate(notification.getGeofenceLatitude()));
+		jsonNotification.put(KEY_GEOFENCE_LONGITUDE, toCoordinate(notification.getGeofenceLongitude()));
 		jsonNotification.put(KEY_TRIGGER, notification.getTrigger());
 		jsonNotification.put(KEY_DWELLING_MINUTES, notification.getDwellingMinutes());
 		jsonNotification.put(KEY_MATCH_RANGE, notification.getMatchRange());
@@ -226,30 +305,16 @@ public final class JsonUtil {
 	}
 	
 	public static HashMap<String, Object>[] sentNotificationsToMap(List<SentNotification> notifications) {
-		HashMap<String, Object>[] result = new HashMap[notifications.size()];
-		int i = 0;
-		for (SentNotification notification : notifications) {
-			result[i] = sentNotificationToMap(notification);
-			i++;
-		}
-		return result;
+		return ParallelMarshaller.convert(notifications, SENT_NOTIFICATION_CONVERTER);
 	}
 	
 	public static HashMap<String, Object> sentGeotriggerToMap(SentGeotrigger geotrigger) {
-		HashMap<String, Object> jsonGeotrigger = new HashMap<String, Object>();
+		HashMap<String, Object> jsonGeotrigger = newMap(SENT_GEOTRIGGER_KEYS);
 		jsonGeotrigger.put(KEY_ID, geotrigger.getId());
 		jsonGeotrigger.put(KEY_MATCH_ID, geotrigger.getMatchId());
 		jsonGeotrigger.put(KEY_DATA, geotrigger.getData());
-		if (!Double.isNaN(geotrigger.getGeofenceLatitude())) {
-			jsonGeotrigger.put(KEY_GEOFENCE_LATITUDE, geotrigger.getGeofenceLatitude());
-		} else {
-			jsonGeotrigger.put(KEY_GEOFENCE_LATITUDE, null);
-		}
-		if (!Double.isNaN(geotrigger.getGeofenceLongitude())) {
-			jsonGeotrigger.put(KEY_GEOFENCE_LONGITUDE, geotrigger.getGeofenceLongitude());
-		} else {
-			jsonGeotrigger.put(KEY_GEOFENCE_LONGITUDE, null);
-		}
+		jsonGeotrigger.put(KEY_GEOFENCE_LATITUDE, toCoordinate(geotrigger.getGeofenceLatitude()));
+		jsonGeotrigger.put(KEY_GEOFENCE_LONGITUDE, toCoordinate(geotrigger.getGeofenceLongitude()));
 		jsonGeotrigger.put(KEY_TRIGGER, geotrigger.getTrigger());
 		jsonGeotrigger.put(KEY_DWELLING_MINUTES, geotrigger.getDwellingMinutes());
 		jsonGeotrigger.put(KEY_MATCH_RANGE, geotrigger.getMatchRange());
@@ -260,13 +325,7 @@ public final class JsonUtil {
 	}
 	
 	public static HashMap<String, Object>[] sentGeotriggersToMap(List<SentGeotrigger> geotriggers) {
-		HashMap<String, Object>[] result = new HashMap[geotriggers.size()];
-		int i = 0;
-		for (SentGeotrigger geotrigger : geotriggers) {
-			result[i] = sentGeotriggerToMap(geotrigger);
-			i++;
-		}
-		return result;
+		return ParallelMarshaller.convert(geotriggers, SENT_GEOTRIGGER_CONVERTER);
 	}
 	
 }
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.appcelerator.kroll.KrollProxy;
+
+import com.plotprojects.retail.android.Geotrigger;
+import com.plotprojects.retail.android.NotificationTrigger;
+import com.plotprojects.retail.android.Plot;
+
+/**
+ * Watches the notifications and geotriggers loaded by Plot while the app listens to the change events. At every
+ * interval the ids of the loaded set are compared with those of the previous check on a background thread. Only
+ * when they differ an event is fired, with the added notifications or geotriggers converted to JavaScript objects
+ * and the removed ones as they were when they were last seen.
+ *
+ * The first check after a kind of event gets a listener only remembers the loaded set, the app is expected to fetch
+ * it once with getLoadedNotifications or getLoadedGeotriggers.
+ */
+final class LoadedCampaignWatcher {
+	static final String NOTIFICATIONS_CHANGED_EVENT = "plotLoadedNotificationsChanged";
+	static final String GEOTRIGGERS_CHANGED_EVENT = "plotLoadedGeotriggersChanged";
+	static final String METRIC_CHECKS = "loadedCampaignChecks";
+	static final String METRIC_CHANGES = "loadedCampaignChanges";
+
+	private final KrollProxy proxy;
+	private final Object lock = new Object();
+	private ScheduledExecutorService executor;
+	private volatile boolean watchNotifications = false;
+	private volatile boolean watchGeotriggers = false;
+	// only accessed on the thread of the executor, null until the first check
+	private Map<String, NotificationTrigger> notifications;
+	private Map<String, Geotrigger> geotriggers;
+
+	LoadedCampaignWatcher(KrollProxy proxy) {
+		this.proxy = proxy;
+	}
+
+	/**
+	 * Starts or stops watching a kind of campaign. The checks stop when neither kind is watched.
+	 */
+	void setWatching(boolean notifications, boolean geotriggers) {
+		synchronized(lock) {
+			watchNotifications = notifications;
+			watchGeotriggers = geotriggers;
+			if ((notifications || geotriggers) && executor == null) {
+				long interval = SettingsUtil.getLoadedCampaignWatchInterval();
+				executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "plot-campaign-watcher");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				executor.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						check();
+					}
+				}, 0, interval, TimeUnit.SECONDS);
+				ModuleLog.d("Watching loaded campaigns every %d seconds", interval);
+			} else if (!notifications && !geotriggers && executor != null) {
+				executor.shutdownNow();
+				executor = null;
+				ModuleLog.d("Stopped watching loaded campaigns");
+			}
+		}
+	}
+
+	void stop() {
+		setWatching(false, false);
+	}
+
+	private void check() {
+		try {
+			ModuleMetrics.increment(METRIC_CHECKS);
+			if (watchNotifications) {
+				Map<String, NotificationTrigger> loaded = new LinkedHashMap<String, NotificationTrigger>();
+				for (NotificationTrigger notification : Plot.getLoadedNotifications()) {
+					loaded.put(notification.getId(), notification);
+				}
+				if (notifications != null) {
+					List<NotificationTrigger> added = getAdded(notifications, loaded);
+					List<NotificationTrigger> removed = getAdded(loaded, notifications);
+					if (!added.isEmpty() || !removed.isEmpty()) {
+						fireChanged(NOTIFICATIONS_CHANGED_EVENT, JsonUtil.notificationTriggersToMap(added),
+								JsonUtil.notificationTriggersToMap(removed));
+					}
+				}
+				notifications = loaded;
+			} else {
+				notifications = null;
+			}
+
+			if (watchGeotriggers) {
+				Map<String, Geotrigger> loaded = new LinkedHashMap<String, Geotrigger>();
+				for (Geotrigger geotrigger : Plot.getLoadedGeotriggers()) {
+					loaded.put(geotrigger.getId(), geotrigger);
+				}
+				if (geotriggers != null) {
+					List<Geotrigger> added = getAdded(geotriggers, loaded);
+					List<Geotrigger> removed = getAdded(loaded, geotriggers);
+					if (!added.isEmpty() || !removed.isEmpty()) {
+						fireChanged(GEOTRIGGERS_CHANGED_EVENT, JsonUtil.loadedGeotriggersToMap(added), JsonUtil.loadedGeotriggersToMap(removed));
+					}
+				}
+				geotriggers = loaded;
+			} else {
+				geotriggers = null;
+			}
+		} catch (Throwable e) {
+			// an exception would cancel the next checks
+			ModuleLog.e(e, "Error checking loaded campaigns");
+		}
+	}
+
+	/**
+	 * @return the values of current of which the key isn't in previous
+	 */
+	private static <T> List<T> getAdded(Map<String, T> previous, Map<String, T> current) {
+		List<T> result = new ArrayList<T>();
+		for (Map.Entry<String, T> entry : current.entrySet()) {
+			if (!previous.containsKey(entry.getKey())) {
+				result.add(entry.getValue());
+			}
+		}
+		return result;
+	}
+
+	private void fireChanged(String event, HashMap[] added, HashMap[] removed) {
+		ModuleMetrics.increment(METRIC_CHANGES);
+		ModuleLog.d("Loaded campaigns changed, %d added and %d removed", added.length, removed.length);
+		if (proxy.hasListeners(event)) {
+			HashMap<String, Object> data = new HashMap<String, Object>();
+			data.put("added", added);
+			data.put("removed", removed);
+			proxy.fireEvent(event, data);
+		}
+	}
+}
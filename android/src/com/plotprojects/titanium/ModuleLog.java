@@ -0,0 +1,357 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.appcelerator.titanium.TiApplication;
+
+import android.util.Log;
+
+/**
+ * Log of the module. Entries below the configured level are discarded before anything is formatted. Other entries
+ * are stored unformatted in a fixed-size ring buffer, so logging doesn't take a lock and costs little on the
+ * calling thread. A background thread formats the entries, passes them on to the Android log and, when enabled,
+ * appends them to a log file that is moved to a backup file when it grows too large. Warnings and errors are
+ * flushed right away on the calling thread, so they aren't lost when the process is killed shortly after, and the
+ * services flush the log when they are destroyed.
+ *
+ * Arguments are formatted later on another thread, so they should not be changed after they are logged.
+ */
+final class ModuleLog {
+	static final String LOG_TAG = "PLOT/Titanium";
+	private static final String LOG_FILE_PREFIX = "plot-module";
+	private static final String LOG_FILE_SUFFIX = ".log";
+	private static final String BACKUP_SUFFIX = ".1";
+	private static final long MAX_FILE_SIZE = 256 * 1024;
+	private static final int CAPACITY = 512; // a power of two
+	private static final long FLUSH_DELAY_MILLIS = 500;
+	private static final String[] LEVEL_NAMES = { "verbose", "debug", "info", "warn", "error" };
+
+	private static final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>(CAPACITY);
+	private static final AtomicLong nextSequenceNumber = new AtomicLong();
+	private static final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "plot-module-log");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static final Runnable flush = new Runnable() {
+		public void run() {
+			flushScheduled.set(false);
+			flush();
+		}
+	};
+	private static final Object flushLock = new Object();
+	// -1 until read from the settings
+	private static volatile int level = -1;
+	private static volatile int fileEnabled = -1;
+	// only accessed with flushLock held
+	private static long flushedSequenceNumber = 0;
+	private static SimpleDateFormat dateFormat;
+
+	private ModuleLog() {
+	}
+
+	static boolean isLoggable(int level) {
+		return level >= getLevel();
+	}
+
+	static void d(String format, Object... args) {
+		log(Log.DEBUG, null, format, args);
+	}
+
+	static void i(String format, Object... args) {
+		log(Log.INFO, null, format, args);
+	}
+
+	static void w(String format, Object... args) {
+		log(Log.WARN, null, format, args);
+	}
+
+	static void w(Throwable error, String format, Object... args) {
+		log(Log.WARN, error, format, args);
+	}
+
+	static void e(String format, Object... args) {
+		log(Log.ERROR, null, format, args);
+	}
+
+	static void e(Throwable error, String format, Object... args) {
+		log(Log.ERROR, error, format, args);
+	}
+
+	private static void log(int level, Throwable error, String format, Object[] args) {
+		if (!isLoggable(level)) {
+			return;
+		}
+		long sequenceNumber = nextSequenceNumber.getAndIncrement();
+		entries.set((int) (sequenceNumber & (CAPACITY - 1)), new Entry(sequenceNumber, level, error, format, args));
+		if (level >= Log.WARN) {
+			flush();
+		} else {
+			scheduleFlush();
+		}
+	}
+
+	private static void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			flusher.schedule(flush, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return the name of the level, or null when it isn't known
+	 */
+	static String getLevelName(int level) {
+		return level >= Log.VERBOSE && level <= Log.ERROR ? LEVEL_NAMES[level - Log.VERBOSE] : null;
+	}
+
+	/**
+	 * @return the level with the name, or -1 when it isn't known
+	 */
+	static int parseLevel(String name) {
+		for (int i = 0; i < LEVEL_NAMES.length; i++) {
+			if (LEVEL_NAMES[i].equals(name)) {
+				return Log.VERBOSE + i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads the level and whether to write files from the settings again, once a new configuration is applied.
+	 */
+	static void settingsChanged() {
+		level = -1;
+		fileEnabled = -1;
+	}
+
+	private static int getLevel() {
+		int result = level;
+		if (result == -1) {
+			if (TiApplication.getInstance() == null) {
+				return Log.INFO;
+			}
+			result = SettingsUtil.getModuleLogLevel();
+			level = result;
+		}
+		return result;
+	}
+
+	private static boolean isFileEnabled() {
+		int result = fileEnabled;
+		if (result == -1) {
+			result = SettingsUtil.isModuleLogFileEnabled() ? 1 : 0;
+			fileEnabled = result;
+		}
+		return result == 1;
+	}
+
+	/**
+	 * @param count the maximum number of entries to return
+	 * @return the most recent entries in the ring buffer, oldest first
+	 */
+	static HashMap[] getRecentEntries(int count) {
+		long end = nextSequenceNumber.get();
+		long start = Math.max(0, end - Math.min(count, CAPACITY));
+		List<HashMap> result = new ArrayList<HashMap>();
+		for (long sequenceNumber = start; sequenceNumber < end; sequenceNumber++) {
+			Entry entry = entries.get((int) (sequenceNumber & (CAPACITY - 1)));
+			// skip entries that were overwritten or are still being written
+			if (entry != null && entry.sequenceNumber == sequenceNumber) {
+				HashMap<String, Object> map = new HashMap<String, Object>();
+				map.put("time", new Date(entry.time));
+				map.put("level", getLevelName(entry.level));
+				map.put("message", entry.getMessage());
+				result.add(map);
+			}
+		}
+		return result.toArray(new HashMap[result.size()]);
+	}
+
+	/**
+	 * @return the log files of all processes, the backup of a process before its current file
+	 */
+	static List<File> getFiles() {
+		List<File> result = new ArrayList<File>();
+		if (TiApplication.getInstance() == null) {
+			return result;
+		}
+		File[] files = TiApplication.getInstance().getFilesDir().listFiles();
+		if (files == null) {
+			return result;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.getName().startsWith(LOG_FILE_PREFIX) && file.getName().endsWith(LOG_FILE_SUFFIX)) {
+				File backup = new File(file.getPath() + BACKUP_SUFFIX);
+				if (backup.exists()) {
+					result.add(backup);
+				}
+				result.add(file);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Passes the entries logged since the previous flush on to the Android log and the log file, on the calling
+	 * thread. Entries that are still being written by another thread are flushed later.
+	 */
+	static void flush() {
+		synchronized(flushLock) {
+			flushLocked();
+		}
+	}
+
+	private static void flushLocked() {
+		long end = nextSequenceNumber.get();
+		long start = Math.max(flushedSequenceNumber, end - CAPACITY);
+		List<Entry> flushed = new ArrayList<Entry>();
+		long lost = start - flushedSequenceNumber;
+		long sequenceNumber = start;
+		for (; sequenceNumber < end; sequenceNumber++) {
+			Entry entry = entries.get((int) (sequenceNumber & (CAPACITY - 1)));
+			if (entry == null || entry.sequenceNumber < sequenceNumber) {
+				// still being written, continue with it in the next flush
+				scheduleFlush();
+				break;
+			}
+			if (entry.sequenceNumber > sequenceNumber) {
+				lost++;
+				continue;
+			}
+			flushed.add(entry);
+		}
+		flushedSequenceNumber = sequenceNumber;
+
+		if (lost > 0) {
+			Log.w(LOG_TAG, String.format("%d log entries were overwritten before they were written", lost));
+		}
+		for (Entry entry : flushed) {
+			if (entry.error == null) {
+				Log.println(entry.level, LOG_TAG, entry.getMessage());
+			} else if (entry.level >= Log.ERROR) {
+				Log.e(LOG_TAG, entry.getMessage(), entry.error);
+			} else {
+				Log.w(LOG_TAG, entry.getMessage(), entry.error);
+			}
+		}
+		if (TiApplication.getInstance() != null && isFileEnabled() && (!flushed.isEmpty() || lost > 0)) {
+			try {
+				append(flushed, lost);
+			} catch (IOException e) {
+				Log.w(LOG_TAG, "Couldn't write module log", e);
+			}
+		}
+	}
+
+	private static void append(List<Entry> flushed, long lost) throws IOException {
+		File file = getLogFile();
+		if (file.length() >= MAX_FILE_SIZE) {
+			File backup = getBackupFile();
+			backup.delete();
+			if (!file.renameTo(backup)) {
+				file.delete();
+			}
+		}
+		if (dateFormat == null) {
+			dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+		}
+		Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+		try {
+			if (lost > 0) {
+				out.write(String.format(Locale.US, "%d log entries were overwritten before they were written%n", lost));
+			}
+			for (Entry entry : flushed) {
+				out.write(dateFormat.format(new Date(entry.time)));
+				out.write(' ');
+				out.write(Character.toUpperCase(getLevelName(entry.level).charAt(0)));
+				out.write(' ');
+				out.write(entry.getMessage());
+				if (entry.error != null) {
+					out.write(": ");
+					out.write(entry.error.toString());
+				}
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Every process writes its own log file, the process of the app to plot-module.log and for example the process
+	 * :plot to plot-module-plot.log.
+	 */
+	private static File getLogFile() {
+		String processSuffix = PlotProcess.getProcessSuffix();
+		String name = LOG_FILE_PREFIX + (processSuffix != null ? "-" + processSuffix : "") + LOG_FILE_SUFFIX;
+		return new File(TiApplication.getInstance().getFilesDir(), name);
+	}
+
+	private static File getBackupFile() {
+		return new File(getLogFile().getPath() + BACKUP_SUFFIX);
+	}
+
+	private static final class Entry {
+		private final long sequenceNumber;
+		private final long time = System.currentTimeMillis();
+		private final int level;
+		private final Throwable error;
+		private final String format;
+		private final Object[] args;
+		private volatile String message;
+
+		public Entry(long sequenceNumber, int level, Throwable error, String format, Object[] args) {
+			this.sequenceNumber = sequenceNumber;
+			this.level = level;
+			this.error = error;
+			this.format = format;
+			this.args = args;
+		}
+
+		public String getMessage() {
+			String result = message;
+			if (result == null) {
+				result = args.length == 0 ? format : String.format(Locale.US, format, args);
+				message = result;
+			}
+			return result;
+		}
+	}
+}
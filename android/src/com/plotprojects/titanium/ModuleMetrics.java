@@ -0,0 +1,64 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters kept by the module in the current process. Exposed to JavaScript through getMetrics().
+ */
+final class ModuleMetrics {
+	private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+	private ModuleMetrics() {
+	}
+
+	static void increment(String name) {
+		add(name, 1);
+	}
+
+	static void add(String name, long delta) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = counters.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.addAndGet(delta);
+	}
+
+	static long get(String name) {
+		AtomicLong counter = counters.get(name);
+		return counter != null ? counter.get() : 0;
+	}
+
+	static HashMap<String, Object> snapshot() {
+		HashMap<String, Object> result = new HashMap<String, Object>();
+		for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+			result.put(counter.getKey(), counter.getValue().get());
+		}
+		return result;
+	}
+
+	static void reset() {
+		counters.clear();
+	}
+}
@@ -15,11 +15,14 @@
  */
 package com.plotprojects.titanium;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
 
 import android.app.Service;
 
@@ -27,21 +30,102 @@ import com.plotprojects.retail.android.FilterableNotification;
 import com.plotprojects.retail.android.NotificationFilterUtil.Batch;
 
 public final class NotificationBatches {
+	static final String METRIC_PASSED_THROUGH = "notificationBatchesPassedThrough";
+	static final String METRIC_DROPPED = "notificationBatchesDropped";
+	static final String METRIC_COLLAPSED = "notificationBatchesCollapsed";
+	static final String METRIC_DECISION_MILLIS = "notificationDecisionMillis";
+	static final String METRIC_DECISIONS = "notificationDecisions";
+	static final String METRIC_PEAK_PENDING = "notificationBatchesPeakPending";
+	
+	// the chunk id of an empty chunk, which doesn't have to be submitted
+	static final int NO_CHUNK = -1;
+
 	private static final Object lock = new Object();
-	private static final Queue<BatchWithStartId> pendingBatches = new LinkedList<BatchWithStartId>();
+	private static final LinkedList<BatchWithStartId> pendingBatches = new LinkedList<BatchWithStartId>();
 	private static final Map<String, BatchWithStartId> activeBatches = new HashMap<String, BatchWithStartId>();
 	private static int batchId = 0;
+	private static int peakPending = 0;
 	
 	private NotificationBatches() {		
 	}
 	
-	public static void addBatch(Batch batch, Service service, int startId) {
+	public static boolean addBatch(Batch batch, Service service, int startId) {
+		if (batch == null) {
+			return false;
+		}
+		return addBatch(batch, batch.getNotifications(), service, startId);
+	}
+	
+	/**
+	 * Adds a batch of which only the given notifications are passed to the script. The other notifications of the batch
+	 * are left out when the batch is sent.
+	 *
+	 * When the maximum number of pending batches is reached the configured overflow policy is applied.
+	 *
+	 * @return whether the script has to be started for this batch
+	 */
+	public static boolean addBatch(Batch batch, List<FilterableNotification> notifications, Service service, int startId) {
 		if (batch == null) {
-			return;
+			return false;
 		}
+		int maxPending = SettingsUtil.getMaxPendingBatches();
+		OverflowPolicy policy = SettingsUtil.getPendingBatchOverflowPolicy();
+		BatchWithStartId newBatch = new BatchWithStartId(batch, notifications, service, startId);
 		synchronized(lock) {
-			pendingBatches.add(new BatchWithStartId(batch, service, startId));
+			if (maxPending > 0 && pendingBatches.size() >= maxPending) {
+				switch (policy) {
+				case PASS_THROUGH:
+					ModuleLog.w("Too many pending notification batches, sending batch without filtering");
+					ModuleMetrics.increment(METRIC_PASSED_THROUGH);
+					newBatch.completeWithoutScript(notifications);
+					return false;
+				case DROP_OLDEST:
+					ModuleLog.w("Too many pending notification batches, dropping oldest batch");
+					ModuleMetrics.increment(METRIC_DROPPED);
+					BatchWithStartId oldest = findPending(true);
+					pendingBatches.remove(oldest);
+					oldest.drop();
+					break;
+				case COLLAPSE:
+					ModuleLog.w("Too many pending notification batches, collapsing batch into newest pending batch");
+					ModuleMetrics.increment(METRIC_COLLAPSED);
+					BatchWithStartId newest = findPending(false);
+					pendingBatches.remove(newest);
+					newest.collapse(newBatch);
+					insertByDeadline(newest);
+					return false;
+				}
+			}
+			insertByDeadline(newBatch);
+			if (pendingBatches.size() > peakPending) {
+				peakPending = pendingBatches.size();
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Inserts the batch before the first pending batch with a later deadline.
+	 */
+	private static void insertByDeadline(BatchWithStartId batch) {
+		ListIterator<BatchWithStartId> it = pendingBatches.listIterator();
+		while (it.hasNext()) {
+			if (it.next().getDeadline() > batch.getDeadline()) {
+				it.previous();
+				break;
+			}
 		}
+		it.add(batch);
+	}
+	
+	private static BatchWithStartId findPending(boolean oldest) {
+		BatchWithStartId result = null;
+		for (BatchWithStartId batch : pendingBatches) {
+			if (result == null || (oldest ? batch.getArrival() < result.getArrival() : batch.getArrival() >= result.getArrival())) {
+				result = batch;
+			}
+		}
+		return result;
 	}
 	
 	public static NotificationsAndId popBatch() {
@@ -52,7 +136,63 @@ public final class NotificationBatches {
 				return null;
 			}
 			activeBatches.put(newBatchId, batchWithStartId);
-			return new NotificationsAndId(batchWithStartId.getBatch().getNotifications(), newBatchId);
+			return new NotificationsAndId(batchWithStartId.getNotifications(), newBatchId);
+		}
+	}
+	
+	/**
+	 * Returns the next chunk of at most <code>size</code> notifications of the batch with the given id. When
+	 * <code>batchId</code> is null the next pending batch is started.
+	 *
+	 * @return the chunk, or null when there is no pending batch
+	 */
+	public static NotificationsAndId popChunk(String batchId, int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive");
+		}
+		synchronized(lock) {
+			BatchWithStartId batchWithStartId;
+			if (batchId == null) {
+				batchWithStartId = pendingBatches.poll();
+				if (batchWithStartId == null) {
+					return null;
+				}
+				batchId = Integer.toString(NotificationBatches.batchId++);
+				activeBatches.put(batchId, batchWithStartId);
+			} else {
+				batchWithStartId = activeBatches.get(batchId);
+				if (batchWithStartId == null) {
+					throw new IllegalArgumentException(String.format("Unknown batch: %s", batchId));
+				}
+			}
+			
+			List<FilterableNotification> all = batchWithStartId.getNotifications();
+			int start = batchWithStartId.getOffset();
+			int end = Math.min(all.size(), start + size);
+			int chunkId = batchWithStartId.chunkPopped(end);
+			return new NotificationsAndId(new ArrayList<FilterableNotification>(all.subList(start, end)), batchId, chunkId, all.size() - end);
+		}
+	}
+	
+	/**
+	 * Adds the notifications the script returned for a chunk. The batch is sent when all notifications have been popped
+	 * and every popped chunk has been submitted. Each chunk is submitted once, with the id it was popped with.
+	 *
+	 * @return whether the batch was sent
+	 * @throws IllegalArgumentException when the chunk is unknown or was already submitted
+	 */
+	public static boolean submitChunk(String batchId, int chunkId, List<FilterableNotification> notifications) {
+		synchronized(lock) {
+			BatchWithStartId batchWithStartId = activeBatches.get(batchId);
+			if (batchWithStartId == null) {
+				return false;
+			}
+			batchWithStartId.chunkSubmitted(chunkId, notifications);
+			if (!batchWithStartId.isComplete()) {
+				return false;
+			}
+			sendBatch(batchId, batchWithStartId.getSubmitted());
+			return true;
 		}
 	}
 	
@@ -60,7 +200,7 @@ public final class NotificationBatches {
 		synchronized(lock) {
 			BatchWithStartId batch = activeBatches.get(batchId);
 			if (batch != null) {
-				return batch.getBatch().getNotifications();
+				return batch.getNotifications();
 			}
 			return null;
 		}
@@ -70,45 +210,222 @@ public final class NotificationBatches {
 		synchronized(lock) {
 			BatchWithStartId batchWithStartId = activeBatches.remove(batchId);
 			if (batchWithStartId != null) {
-				Batch batch = batchWithStartId.getBatch();
-				batch.sendNotifications(notifications);
-				
-				batchWithStartId.getService().stopSelf(batchWithStartId.getStartId());
+				batchWithStartId.send(notifications);
 			}
 		}
 	}
 	
+	public static int getPendingCount() {
+		synchronized(lock) {
+			return pendingBatches.size();
+		}
+	}
+	
+	public static int getActiveCount() {
+		synchronized(lock) {
+			return activeBatches.size();
+		}
+	}
+	
+	/**
+	 * @return the latest deadline of the active batches, or <code>Long.MIN_VALUE</code> when no batch is active
+	 */
+	public static long getLatestActiveDeadline() {
+		synchronized(lock) {
+			long result = Long.MIN_VALUE;
+			for (BatchWithStartId batch : activeBatches.values()) {
+				result = Math.max(result, batch.getDeadline());
+			}
+			return result;
+		}
+	}
+	
+	public static int getPeakPendingCount() {
+		synchronized(lock) {
+			return peakPending;
+		}
+	}
+	
 	private static final class BatchWithStartId {
 		private final Batch batch;
+		private final List<FilterableNotification> notifications;
 		private final Service service;
 		private final int startId;
+		private final List<BatchWithStartId> collapsed = new ArrayList<BatchWithStartId>();
+		private List<FilterableNotification> allNotifications;
+		private final List<FilterableNotification> submitted = new ArrayList<FilterableNotification>();
+		private int offset = 0;
+		private int nextChunkId = 0;
+		// the chunks that were popped and not submitted yet
+		private final Set<Integer> openChunks = new HashSet<Integer>();
+		private final long arrival;
+		private long deadline;
 		
-		public BatchWithStartId(Batch batch, Service service, int startId) {
+		public BatchWithStartId(Batch batch, List<FilterableNotification> notifications, Service service, int startId) {
 			this.batch = batch;
+			this.notifications = notifications;
+			this.allNotifications = notifications;
 			this.service = service;
 			this.startId = startId;
+			ServiceStarts.opened(service, startId);
+			this.arrival = BatchScheduler.now();
+			this.deadline = BatchScheduler.notificationDeadline(arrival, notifications);
 		}
-
-		public Batch getBatch() {
-			return batch;
+		
+		public long getArrival() {
+			return arrival;
 		}
 		
-		public Service getService() {
-			return service;
+		public long getDeadline() {
+			return deadline;
 		}
-
-		public int getStartId() {
-			return startId;
+		
+		/**
+		 * @return the notifications of this batch and of the batches collapsed into it
+		 */
+		public List<FilterableNotification> getNotifications() {
+			return allNotifications;
+		}
+		
+		public void collapse(BatchWithStartId other) {
+			collapsed.add(other);
+			deadline = Math.min(deadline, other.deadline);
+			List<FilterableNotification> combined = new ArrayList<FilterableNotification>(allNotifications.size() + other.notifications.size());
+			combined.addAll(allNotifications);
+			combined.addAll(other.notifications);
+			allNotifications = combined;
+		}
+		
+		/**
+		 * Sends the given notifications to the Plot batches they belong to.
+		 *
+		 * When batches were collapsed, several Plot batches can contain a notification with the same id, while the
+		 * script returns only one of them. The result is therefore matched by id for every Plot batch, and the changes
+		 * the script made are copied to the notifications of the other batches.
+		 */
+		public void send(List<FilterableNotification> notificationsToSend) {
+			if (collapsed.isEmpty()) {
+				complete(notificationsToSend);
+				return;
+			}
+			Map<String, FilterableNotification> selected = new HashMap<String, FilterableNotification>();
+			for (FilterableNotification notification : notificationsToSend) {
+				selected.put(notification.getId(), notification);
+			}
+			completeSelected(selected);
+			for (BatchWithStartId other : collapsed) {
+				other.completeSelected(selected);
+			}
+		}
+		
+		private void completeSelected(Map<String, FilterableNotification> selected) {
+			List<FilterableNotification> result = new ArrayList<FilterableNotification>();
+			for (FilterableNotification notification : notifications) {
+				FilterableNotification selectedNotification = selected.get(notification.getId());
+				if (selectedNotification == null) {
+					continue;
+				}
+				if (selectedNotification != notification) {
+					notification.setMessage(selectedNotification.getMessage());
+					notification.setData(selectedNotification.getData());
+				}
+				result.add(notification);
+			}
+			complete(result);
+		}
+		
+		public void complete(List<FilterableNotification> notificationsToSend) {
+			batch.sendNotifications(notificationsToSend);
+			BatchRecorder.recordNotificationDecision(batch, notificationsToSend, true);
+			if (RecentlyHandledFilter.isEnabled()) {
+				RecentlyHandledFilter.addNotifications(notifications);
+			}
+			SentHistoryIndex.invalidate();
+			
+			finished();
+		}
+		
+		/**
+		 * Sends the notifications without recording them as handled by the script.
+		 */
+		public void completeWithoutScript(List<FilterableNotification> notificationsToSend) {
+			batch.sendNotifications(notificationsToSend);
+			BatchRecorder.recordNotificationDecision(batch, notificationsToSend, false);
+			SentHistoryIndex.invalidate();
+			finished();
+		}
+		
+		private void finished() {
+			ModuleMetrics.add(METRIC_DECISION_MILLIS, BatchScheduler.now() - arrival);
+			ModuleMetrics.increment(METRIC_DECISIONS);
+			ServiceStarts.finished(service, startId);
+			BatchScheduler.notificationWorkChanged();
+		}
+		
+		/**
+		 * Completes this batch and the batches collapsed into it without any of the notifications selected by the script.
+		 */
+		public void drop() {
+			completeWithoutScript(new ArrayList<FilterableNotification>());
+			for (BatchWithStartId other : collapsed) {
+				other.completeWithoutScript(new ArrayList<FilterableNotification>());
+			}
+		}
+		
+		public int getOffset() {
+			return offset;
+		}
+		
+		public List<FilterableNotification> getSubmitted() {
+			return submitted;
+		}
+		
+		/**
+		 * @return the id of the chunk, or NO_CHUNK when it is empty
+		 */
+		public int chunkPopped(int newOffset) {
+			if (newOffset == offset) {
+				return NO_CHUNK;
+			}
+			offset = newOffset;
+			int chunkId = nextChunkId++;
+			openChunks.add(chunkId);
+			return chunkId;
+		}
+		
+		public void chunkSubmitted(int chunkId, List<FilterableNotification> notifications) {
+			if (chunkId == NO_CHUNK) {
+				if (!notifications.isEmpty()) {
+					throw new IllegalArgumentException("An empty chunk can't be submitted with notifications");
+				}
+				return;
+			}
+			if (!openChunks.remove(chunkId)) {
+				throw new IllegalArgumentException(String.format("Unknown or already submitted chunk: %d", chunkId));
+			}
+			submitted.addAll(notifications);
+		}
+		
+		public boolean isComplete() {
+			return offset >= allNotifications.size() && openChunks.isEmpty();
 		}
 	}
 	
 	public static final class NotificationsAndId {
 		private final List<FilterableNotification> notifications;
 		private final String id;
+		private final int chunkId;
+		private final int remaining;
 		
 		public NotificationsAndId(List<FilterableNotification> notifications, String id) {
+			this(notifications, id, NO_CHUNK, 0);
+		}
+		
+		public NotificationsAndId(List<FilterableNotification> notifications, String id, int chunkId, int remaining) {
 			this.notifications = notifications;
 			this.id = id;
+			this.chunkId = chunkId;
+			this.remaining = remaining;
 		}
 		
 		public List<FilterableNotification> getNotifications() {
@@ -117,5 +434,19 @@ public final class NotificationBatches {
 		public String getId() {
 			return id;
 		}
+		
+		/**
+		 * @return the id to submit the chunk with, or NO_CHUNK when the chunk is empty
+		 */
+		public int getChunkId() {
+			return chunkId;
+		}
+		
+		/**
+		 * @return the number of notifications of the batch that haven't been popped yet
+		 */
+		public int getRemaining() {
+			return remaining;
+		}
 	}
 }
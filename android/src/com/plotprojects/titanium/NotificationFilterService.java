@@ -15,15 +15,16 @@
  */
 package com.plotprojects.titanium;
 
+import java.util.List;
+
+import com.plotprojects.retail.android.FilterableNotification;
 import com.plotprojects.retail.android.NotificationFilter;
 import com.plotprojects.retail.android.NotificationFilterUtil;
 
 import android.content.Intent;
-import android.util.Log;
 import ti.modules.titanium.android.TiJSService;
 
 public final class NotificationFilterService extends TiJSService implements NotificationFilter {
-	private final static String LOG_TAG = "PLOT/Titanium";
 	
 	public NotificationFilterService() {
 		super("plotfilter.js");
@@ -31,25 +32,47 @@ public final class NotificationFilterService extends TiJSService implements Noti
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {		
+		PlotProcess.recheckSharedState();
 		if (NotificationFilterUtil.isNotificationFilterIntent(intent)) {
 			NotificationFilterUtil.Batch batch = NotificationFilterUtil.getBatch(intent, this);
 			if (batch != null) {
 				if (SettingsUtil.isNotificationFilterEnabled()) {
-					NotificationBatches.addBatch(batch, this, startId);	
-					return super.onStartCommand(intent, flags, startId);
+					if (BatchRecorder.isEnabled()) {
+						BatchRecorder.recordNotificationBatch(batch, batch.getNotifications());
+					}
+					List<FilterableNotification> notifications = batch.getNotifications();
+					if (RecentlyHandledFilter.isEnabled()) {
+						notifications = RecentlyHandledFilter.removeHandledNotifications(notifications);
+					}
+					if (!notifications.isEmpty() || batch.getNotifications().isEmpty()) {
+						if (NotificationBatches.addBatch(batch, notifications, this, startId)) {
+							return super.onStartCommand(intent, flags, startId);
+						}
+						return START_NOT_STICKY;
+					}
+					ModuleLog.i("Skipping notification filter, all notifications were handled recently");
+					batch.sendNotifications(notifications);
+					BatchRecorder.recordNotificationDecision(batch, notifications, false);
 				} else {
 					batch.sendNotifications(batch.getNotifications());
+					SentHistoryIndex.invalidate();
 				}
 			} else {
-				Log.w(LOG_TAG, "Unable to obtain batch with notifications from intent");
+				ModuleLog.w("Unable to obtain batch with notifications from intent");
 			}
 		} else {
-			Log.w(LOG_TAG, String.format("Received unexpected intent with action: %s", intent.getAction()));
+			ModuleLog.w("Received unexpected intent with action: %s", intent.getAction());
 		}
-		stopSelf(startId);
+		ServiceStarts.finished(this, startId);
 		return START_NOT_STICKY;
 	}
 	
+	@Override
+	public void onDestroy() {
+		ModuleLog.flush();
+		super.onDestroy();
+	}
+	
 	@Override
 	public void onTaskRemoved(Intent rootIntent) {
 
@@ -34,6 +34,7 @@ public class NotificationHandler extends BroadcastReceiver {
         FilterableNotification notification = intent.getParcelableExtra("notification");
         
         NotificationQueue.addNotification(notification);
+        SentHistoryIndex.invalidate();
         
         Intent startIntent = pm.getLaunchIntentForPackage(context.getPackageName());
         startIntent.setAction(Intent.ACTION_MAIN);
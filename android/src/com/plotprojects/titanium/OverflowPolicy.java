@@ -0,0 +1,47 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+/**
+ * What happens to a new batch when the number of pending batches has reached the configured maximum.
+ */
+enum OverflowPolicy {
+	/** The new batch is sent without running the script. */
+	PASS_THROUGH("passThrough"),
+	/** The oldest pending batch is sent without any of its items. */
+	DROP_OLDEST("dropOldest"),
+	/** The new batch is added to the newest pending batch, so both are passed to the same script run. */
+	COLLAPSE("collapse");
+
+	private final String name;
+
+	private OverflowPolicy(String name) {
+		this.name = name;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	static OverflowPolicy fromName(String name) {
+		for (OverflowPolicy policy : values()) {
+			if (policy.name.equals(name)) {
+				return policy;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts large lists of notifications and geotriggers to maps on several cores. The list is split in one range
+ * per core. The calling thread converts one range itself and the others are converted by a small pool with a thread
+ * less than there are cores. Lists smaller than the configured threshold are converted on the calling thread only,
+ * as starting the work on other threads costs more than it saves for them. Without a configured threshold every list
+ * is converted on the calling thread, as where the work starts to pay off depends on the device.
+ *
+ * A plain thread pool is used instead of a ForkJoinPool, as the latter requires Android 5.0. The threads of the pool
+ * stop when they have been idle for a while.
+ */
+final class ParallelMarshaller {
+	static final String METRIC_PARALLEL_CONVERSIONS = "parallelConversions";
+	private static final int MAX_THREADS = 7;
+	private static final long KEEP_ALIVE_SECONDS = 10;
+
+	interface Converter<T> {
+		HashMap<String, Object> convert(T item);
+	}
+
+	private static final Object lock = new Object();
+	private static ThreadPoolExecutor pool;
+	// read from the settings on first use, as it is needed for every conversion
+	private static volatile int threshold = -1;
+
+	private ParallelMarshaller() {
+	}
+
+	/**
+	 * Reads the threshold from the settings again, once a new configuration is applied.
+	 */
+	static void settingsChanged() {
+		threshold = -1;
+	}
+
+	private static int getThreshold() {
+		int result = threshold;
+		if (result == -1) {
+			result = SettingsUtil.getParallelMarshallingThreshold();
+			threshold = result;
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked") // generic array creation
+	static <T> HashMap<String, Object>[] convert(List<T> items, final Converter<T> converter) {
+		final Object[] input = items.toArray();
+		final HashMap<String, Object>[] result = new HashMap[input.length];
+		int threshold = getThreshold();
+		int cores = Math.min(MAX_THREADS + 1, Runtime.getRuntime().availableProcessors());
+		if (threshold <= 0 || input.length < threshold || cores < 2) {
+			convertRange(input, result, 0, input.length, converter);
+			return result;
+		}
+
+		ThreadPoolExecutor executor = getPool(cores - 1);
+		int rangeSize = (input.length + cores - 1) / cores;
+		List<Future<?>> futures = new ArrayList<Future<?>>(cores - 1);
+		for (int start = rangeSize; start < input.length; start += rangeSize) {
+			final int from = start;
+			final int to = Math.min(input.length, start + rangeSize);
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					convertRange(input, result, from, to, converter);
+				}
+			}));
+		}
+		convertRange(input, result, 0, Math.min(input.length, rangeSize), converter);
+		boolean interrupted = false;
+		for (Future<?> future : futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					// the other threads are writing to the result, wait for them anyway
+					interrupted = true;
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		ModuleMetrics.increment(METRIC_PARALLEL_CONVERSIONS);
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> void convertRange(Object[] input, HashMap<String, Object>[] result, int from, int to, Converter<T> converter) {
+		for (int i = from; i < to; i++) {
+			result[i] = converter.convert((T) input[i]);
+		}
+	}
+
+	private static ThreadPoolExecutor getPool(int threads) {
+		synchronized(lock) {
+			if (pool == null) {
+				final AtomicInteger threadNumber = new AtomicInteger();
+				pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "plot-marshaller-" + threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				pool.allowCoreThreadTimeOut(true);
+			}
+			return pool;
+		}
+	}
+}
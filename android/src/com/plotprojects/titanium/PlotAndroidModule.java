@@ -16,6 +16,7 @@
 
 package com.plotprojects.titanium;
 
+import java.io.File;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -24,6 +25,7 @@ import java.util.Collection;
 import java.util.ArrayList;
 
 import org.appcelerator.kroll.KrollModule;
+import org.appcelerator.kroll.KrollProxy;
 import org.appcelerator.kroll.KrollRuntime;
 import org.appcelerator.kroll.annotations.Kroll;
 import org.appcelerator.titanium.TiApplication;
@@ -31,7 +33,9 @@ import org.appcelerator.titanium.TiApplication;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.util.Log;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.plotprojects.retail.android.NotificationTrigger;
 import com.plotprojects.retail.android.FilterableNotification;
@@ -39,6 +43,8 @@ import com.plotprojects.retail.android.Geotrigger;
 import com.plotprojects.retail.android.OpenUriReceiver;
 import com.plotprojects.retail.android.Plot;
 import com.plotprojects.retail.android.PlotConfiguration;
+import com.plotprojects.retail.android.SentGeotrigger;
+import com.plotprojects.retail.android.SentNotification;
 import com.plotprojects.titanium.NotificationBatches.NotificationsAndId;
 import com.plotprojects.titanium.GeotriggerBatches.GeotriggersAndId;
 
@@ -50,7 +56,53 @@ public class PlotAndroidModule extends KrollModule implements NotificationQueue.
 	private static final String PUBLIC_TOKEN_FIELD = "publicToken";
 	private static final String NOTICATION_FILTER_ENABLED = "notificationFilterEnabled";
 	private static final String GEOTRIGGER_HANDLER_ENABLED = "geotriggerHandlerEnabled";
+	private static final String SENT_HISTORY_INDEX_PERSISTENT = "sentHistoryIndexPersistent";
+	private static final String DUPLICATE_SUPPRESSION_ENABLED = "duplicateSuppressionEnabled";
+	private static final String DUPLICATE_SUPPRESSION_FALSE_POSITIVE_RATE = "duplicateSuppressionFalsePositiveRate";
+	private static final String DUPLICATE_SUPPRESSION_MEMORY_BUDGET = "duplicateSuppressionMemoryBudget";
+	private static final String DUPLICATE_SUPPRESSION_WINDOW = "duplicateSuppressionWindow";
+	private static final String MAX_PENDING_BATCHES = "maxPendingBatches";
+	private static final String PENDING_BATCH_OVERFLOW_POLICY = "pendingBatchOverflowPolicy";
+	private static final String GEOTRIGGER_DECISION_CACHE_ENABLED = "geotriggerDecisionCacheEnabled";
+	private static final String GEOTRIGGER_DECISION_CACHE_TTL = "geotriggerDecisionCacheTtl";
+	private static final String GEOTRIGGER_DECISION_CACHE_SIZE = "geotriggerDecisionCacheSize";
+	private static final String GEOTRIGGER_DEFERRED_ENABLED = "geotriggerDeferredEnabled";
+	private static final String GEOTRIGGER_DEFERRED_REQUIRE_UNMETERED = "geotriggerDeferredRequireUnmetered";
+	private static final String GEOTRIGGER_DEFERRED_REQUIRE_CHARGING = "geotriggerDeferredRequireCharging";
+	private static final String GEOTRIGGER_DEFERRED_MAX_DELAY = "geotriggerDeferredMaxDelay";
+	private static final String BATCH_RECORDING_ENABLED = "batchRecordingEnabled";
+	private static final String BATCH_RECORDING_ANONYMIZED = "batchRecordingAnonymized";
+	private static final String BATCH_RECORDING_MAX_SIZE = "batchRecordingMaxSize";
+	private static final String MODULE_LOG_LEVEL = "moduleLogLevel";
+	private static final String MODULE_LOG_FILE_ENABLED = "moduleLogFileEnabled";
+	private static final String PARALLEL_MARSHALLING_THRESHOLD = "parallelMarshallingThreshold";
+	private static final String LOADED_CAMPAIGN_WATCH_INTERVAL = "loadedCampaignWatchInterval";
+	private static final String DEFER_INITIALIZATION = "deferInitialization";
 	private static final String NOTIFICATION_RECEIVED_EVENT = "plotNotificationReceived";
+	private static final String PLOT_READY_EVENT = "plotReady";
+	private static final String EXPORT_PROGRESS_EVENT = "plotExportProgress";
+	private static final String EXPORT_COMPLETED_EVENT = "plotExportCompleted";
+	private static final String EXPORT_FAILED_EVENT = "plotExportFailed";
+	private static final String LAZY_FIELD = "lazy";
+	private static final String FILTER_ID_FIELD = "filterId";
+	private static final String HANDLER_ID_FIELD = "handlerId";
+	private static final String NOTIFICATIONS_FIELD = "notifications";
+	private static final String GEOTRIGGERS_FIELD = "geotriggers";
+	private static final String REMAINING_FIELD = "remaining";
+	private static final String CHUNK_ID_FIELD = "chunkId";
+	private static final String METRIC_EAGER_CONVERSION_NANOS = "eagerConversionNanos";
+	private static final String METRIC_EAGER_CONVERSION_ITEMS = "eagerConversionItems";
+	private static final String METRIC_LAZY_CONVERSION_NANOS = "lazyConversionNanos";
+	private static final String METRIC_LAZY_CONVERSION_ITEMS = "lazyConversionItems";
+	private static final String EXPORT_GZIP_FIELD = "gzip";
+	private static final String EXPORT_SINCE_FIELD = "since";
+	private static final String EXPORT_SINCE_KEYS_FIELD = "sinceKeys";
+	private static final String EXPORT_INCLUDE_FIELD = "include";
+
+	private final LoadedCampaignWatcher loadedCampaignWatcher = new LoadedCampaignWatcher(this);
+	private final Object initializationLock = new Object();
+	private int loadedNotificationsListeners = 0;
+	private int loadedGeotriggersListeners = 0;
 
 	@Kroll.onAppCreate
 	public static void onAppCreate(TiApplication app) {
@@ -60,17 +112,63 @@ public class PlotAndroidModule extends KrollModule implements NotificationQueue.
 	public void newNotification() {
 		TiApplication app = TiApplication.getInstance();
 		if (app == null) {
-			Log.i("PlotAndroidModule", "TiApplication not intialized");
+			ModuleLog.i("TiApplication not intialized");
 			return;
 		}
 		if (!KrollRuntime.isInitialized()) {
-			Log.i("PlotAndroidModule", "KrollRuntime not intialized");
+			ModuleLog.i("KrollRuntime not intialized");
 			return;
 		}
 		
 		handleNotifications();
 	}
 	
+	@Override
+	protected void eventListenerAdded(String event, int count, KrollProxy proxy) {
+		super.eventListenerAdded(event, count, proxy);
+		updateLoadedCampaignWatcher(event, count);
+	}
+
+	@Override
+	protected void eventListenerRemoved(String event, int count, KrollProxy proxy) {
+		super.eventListenerRemoved(event, count, proxy);
+		updateLoadedCampaignWatcher(event, count);
+	}
+
+	/**
+	 * Loaded campaigns are only watched while there are listeners for their change events.
+	 *
+	 * @param count the number of listeners for the event after the change
+	 */
+	private synchronized void updateLoadedCampaignWatcher(String event, int count) {
+		if (LoadedCampaignWatcher.NOTIFICATIONS_CHANGED_EVENT.equals(event)) {
+			loadedNotificationsListeners = count;
+		} else if (LoadedCampaignWatcher.GEOTRIGGERS_CHANGED_EVENT.equals(event)) {
+			loadedGeotriggersListeners = count;
+		} else {
+			return;
+		}
+		loadedCampaignWatcher.setWatching(loadedNotificationsListeners > 0, loadedGeotriggersListeners > 0);
+	}
+
+	@Override
+	public void onResume(Activity activity) {
+		// the services may have changed shared state while the app was in the background
+		PlotProcess.recheckSharedState();
+		super.onResume(activity);
+	}
+
+	@Override
+	public void onDestroy(Activity activity) {
+		synchronized(this) {
+			loadedNotificationsListeners = 0;
+			loadedGeotriggersListeners = 0;
+			loadedCampaignWatcher.stop();
+		}
+		ModuleLog.flush();
+		super.onDestroy(activity);
+	}
+
 	private void handleNotifications() {
 		while (true) {
 			FilterableNotification notification = NotificationQueue.getNextNotification();
@@ -83,7 +181,7 @@ public class PlotAndroidModule extends KrollModule implements NotificationQueue.
   
 	private void handleNotification(FilterableNotification notification) {
 		if (hasListeners(NOTIFICATION_RECEIVED_EVENT)) {
-			Log.i("PlotAndroidModule", "Opening for listener");
+			ModuleLog.i("Opening for listener");
 			// Convert notification to map
 			Map<String, Object> jsonNotification = JsonUtil.notificationToMap(notification);
 			fireEvent(NOTIFICATION_RECEIVED_EVENT, jsonNotification);
@@ -98,48 +196,412 @@ public class PlotAndroidModule extends KrollModule implements NotificationQueue.
 				
 				appContext.sendBroadcast(openBrowserIntent);
 			} catch (Throwable e) {
-				Log.e("PlotAndroidModule", "Error opening URI: " + notification.getData(), e);
+				ModuleLog.e(e, "Error opening URI: %s", notification.getData());
 			}
 		}
 	}
 
 	@Kroll.method
+	@SuppressWarnings("deprecation") // the configuration is only used by the deprecated Plot.init
 	public void initPlot(HashMap configuration) {	
 		TiApplication appContext = TiApplication.getInstance();
 
-		Activity activity = appContext.getCurrentActivity();
+		final Activity activity = appContext.getCurrentActivity();
 
 		if (configuration == null) {
 			throw new IllegalArgumentException("No configuration object provided.");
 		}
 
+		if (configuration.containsKey(DEFER_INITIALIZATION) && !(configuration.get(DEFER_INITIALIZATION) instanceof Boolean)) {
+			throw new IllegalArgumentException("DeferInitialization not specified correctly.");
+		}
+		final boolean deferred = configuration.containsKey(DEFER_INITIALIZATION) && (Boolean) configuration.get(DEFER_INITIALIZATION);
+		final StartupTrace trace = StartupTrace.begin(deferred);
+
+		if (!deferred) {
+			try {
+				initialize(configuration, activity, trace);
+			} catch (RuntimeException e) {
+				trace.finished(e.getMessage());
+				throw e;
+			}
+			trace.returned();
+			firePlotReady(deferred, null);
+			return;
+		}
+
+		// the configuration is checked in the background as well, errors are reported through the plotReady event.
+		// Plot is initialized and the events are fired on the main thread.
+		final HashMap<Object, Object> deferredConfiguration = copyConfiguration(configuration);
+		trace.mark("start");
+		new Thread(new Runnable() {
+			public void run() {
+				trace.mark("queued");
+				PlotConfiguration plotConfiguration = null;
+				String error = null;
+				try {
+					plotConfiguration = configure(deferredConfiguration, trace);
+					SentHistoryIndex.load();
+					trace.mark("sentHistoryIndexLoad");
+				} catch (IllegalArgumentException e) {
+					error = e.getMessage();
+					ModuleLog.e("Couldn't initialize Plot: %s", error);
+				} catch (Throwable e) {
+					error = e.toString();
+					ModuleLog.e(e, "Couldn't initialize Plot");
+				}
+				final PlotConfiguration startConfiguration = plotConfiguration;
+				final String configurationError = error;
+				new Handler(Looper.getMainLooper()).post(new Runnable() {
+					public void run() {
+						String error = configurationError;
+						if (error == null) {
+							try {
+								trace.mark("mainThreadQueued");
+								start(startConfiguration, activity, trace);
+							} catch (Throwable e) {
+								error = e.toString();
+								ModuleLog.e(e, "Couldn't initialize Plot");
+							}
+						}
+						if (error != null) {
+							trace.finished(error);
+						}
+						firePlotReady(deferred, error);
+					}
+				});
+			}
+		}, "PlotInit").start();
+		trace.returned();
+	}
+
+	@SuppressWarnings("unchecked") // Kroll passes the configuration as a raw map
+	private static HashMap<Object, Object> copyConfiguration(HashMap configuration) {
+		return new HashMap<Object, Object>(configuration);
+	}
+
+	private void firePlotReady(boolean deferred, String error) {
+		HashMap<String, Object> result = new HashMap<String, Object>();
+		result.put("deferred", deferred);
+		result.put("success", error == null);
+		result.put("error", error);
+		fireEvent(PLOT_READY_EVENT, result);
+	}
+
+	/**
+	 * Checks and stores the configuration and initializes Plot.
+	 */
+	@SuppressWarnings("deprecation") // the configuration is only used by the deprecated Plot.init
+	private void initialize(HashMap configuration, Activity activity, StartupTrace trace) {
+		PlotConfiguration plotConfiguration = configure(configuration, trace);
+		start(plotConfiguration, activity, trace);
+	}
+
+	/**
+	 * Checks and stores the configuration. Calls are handled one at a time, as a deferred call may still be running
+	 * when initPlot is called again.
+	 *
+	 * @return the configuration to initialize Plot with, or null when no public token was given
+	 */
+	@SuppressWarnings("deprecation") // the configuration is only used by the deprecated Plot.init
+	private PlotConfiguration configure(HashMap configuration, StartupTrace trace) {
+		synchronized(initializationLock) {
+			return configureLocked(configuration, trace);
+		}
+	}
+
+	@SuppressWarnings("deprecation") // the configuration is only used by the deprecated Plot.init
+	private PlotConfiguration configureLocked(HashMap configuration, StartupTrace trace) {
+		// nothing is stored until the whole configuration is checked, then all settings are written at once
+		SharedPreferences.Editor editor = SettingsUtil.edit();
 		if (configuration.containsKey(NOTICATION_FILTER_ENABLED) && !(configuration.get(NOTICATION_FILTER_ENABLED) instanceof Boolean)) {
 			throw new IllegalArgumentException("NotificationFilterEnabled not specified correctly.");
 		} 
 		if (configuration.containsKey(NOTICATION_FILTER_ENABLED)) {
-			SettingsUtil.setNotificationFilterEnabled((Boolean) configuration.get(NOTICATION_FILTER_ENABLED)); 
+			SettingsUtil.setNotificationFilterEnabled(editor, (Boolean) configuration.get(NOTICATION_FILTER_ENABLED)); 
 		}
 
 		if (configuration.containsKey(GEOTRIGGER_HANDLER_ENABLED) && !(configuration.get(GEOTRIGGER_HANDLER_ENABLED) instanceof Boolean)) {
 			throw new IllegalArgumentException("GeotriggerHandlerEnabled not specified correctly.");
 		}
 		if (configuration.containsKey(GEOTRIGGER_HANDLER_ENABLED)) {
-			SettingsUtil.setGeotriggerHandlerEnabled((Boolean) configuration.get(GEOTRIGGER_HANDLER_ENABLED));
+			SettingsUtil.setGeotriggerHandlerEnabled(editor, (Boolean) configuration.get(GEOTRIGGER_HANDLER_ENABLED));
+		}
+
+		if (configuration.containsKey(SENT_HISTORY_INDEX_PERSISTENT) && !(configuration.get(SENT_HISTORY_INDEX_PERSISTENT) instanceof Boolean)) {
+			throw new IllegalArgumentException("SentHistoryIndexPersistent not specified correctly.");
+		}
+		if (configuration.containsKey(SENT_HISTORY_INDEX_PERSISTENT)) {
+			SettingsUtil.setSentHistoryIndexPersistent(editor, (Boolean) configuration.get(SENT_HISTORY_INDEX_PERSISTENT));
+		}
+		trace.mark("settings");
+
+		initModuleLog(configuration, editor);
+		trace.mark("moduleLog");
+		initDuplicateSuppression(configuration, editor);
+		trace.mark("duplicateSuppression");
+		boolean cacheChanged = initGeotriggerDecisionCache(configuration, editor);
+		trace.mark("geotriggerDecisionCache");
+		initGeotriggerDeferred(configuration, editor);
+		trace.mark("geotriggerDeferred");
+		boolean recordingChanged = initBatchRecording(configuration, editor);
+		trace.mark("batchRecording");
+
+		if (configuration.containsKey(PARALLEL_MARSHALLING_THRESHOLD)
+				&& !(configuration.get(PARALLEL_MARSHALLING_THRESHOLD) instanceof Integer && (Integer) configuration.get(PARALLEL_MARSHALLING_THRESHOLD) >= 0)) {
+			throw new IllegalArgumentException("ParallelMarshallingThreshold not specified correctly.");
+		}
+		if (configuration.containsKey(PARALLEL_MARSHALLING_THRESHOLD)) {
+			SettingsUtil.setParallelMarshallingThreshold(editor, (Integer) configuration.get(PARALLEL_MARSHALLING_THRESHOLD));
 		}
 
+		if (configuration.containsKey(LOADED_CAMPAIGN_WATCH_INTERVAL)
+				&& !(configuration.get(LOADED_CAMPAIGN_WATCH_INTERVAL) instanceof Integer && (Integer) configuration.get(LOADED_CAMPAIGN_WATCH_INTERVAL) > 0)) {
+			throw new IllegalArgumentException("LoadedCampaignWatchInterval not specified correctly.");
+		}
+		if (configuration.containsKey(LOADED_CAMPAIGN_WATCH_INTERVAL)) {
+			SettingsUtil.setLoadedCampaignWatchInterval(editor, (Integer) configuration.get(LOADED_CAMPAIGN_WATCH_INTERVAL));
+		}
+
+		if (configuration.containsKey(MAX_PENDING_BATCHES)
+				&& !(configuration.get(MAX_PENDING_BATCHES) instanceof Integer && (Integer) configuration.get(MAX_PENDING_BATCHES) >= 0)) {
+			throw new IllegalArgumentException("MaxPendingBatches not specified correctly.");
+		}
+		if (configuration.containsKey(MAX_PENDING_BATCHES)) {
+			SettingsUtil.setMaxPendingBatches(editor, (Integer) configuration.get(MAX_PENDING_BATCHES));
+		}
+
+		if (configuration.containsKey(PENDING_BATCH_OVERFLOW_POLICY) && !(configuration.get(PENDING_BATCH_OVERFLOW_POLICY) instanceof String
+				&& OverflowPolicy.fromName((String) configuration.get(PENDING_BATCH_OVERFLOW_POLICY)) != null)) {
+			throw new IllegalArgumentException("PendingBatchOverflowPolicy not specified correctly.");
+		}
+		if (configuration.containsKey(PENDING_BATCH_OVERFLOW_POLICY)) {
+			SettingsUtil.setPendingBatchOverflowPolicy(editor, OverflowPolicy.fromName((String) configuration.get(PENDING_BATCH_OVERFLOW_POLICY)));
+		}
+		trace.mark("batchSettings");
+
+		PlotConfiguration plotConfiguration = null;
+		if (configuration.containsKey(PUBLIC_TOKEN_FIELD)) {
+			plotConfiguration = createPlotConfiguration(configuration);
+		}
+		editor.apply();
+		ModuleLog.settingsChanged();
+		ParallelMarshaller.settingsChanged();
+		RecentlyHandledFilter.reset();
+		GeotriggerDecisionCache.configure(cacheChanged);
+		if (recordingChanged) {
+			BatchRecorder.clear();
+		}
+		trace.mark("plotConfiguration");
+		return plotConfiguration;
+	}
+
+	/**
+	 * Initializes Plot and delivers the notifications that were opened before. Runs on the thread of the call of
+	 * the app, or on the main thread when the initialization is deferred.
+	 */
+	@SuppressWarnings("deprecation") // the configuration is only used by the deprecated Plot.init
+	private void start(PlotConfiguration plotConfiguration, Activity activity, StartupTrace trace) {
     NotificationQueue.setListener(this);
+		trace.mark("listener");
 
-		if (!configuration.containsKey(PUBLIC_TOKEN_FIELD)) {
+		if (plotConfiguration == null) {
 			Plot.init(activity);
 		} else {
-      initPlotWithConfiguration(configuration, activity);
+      initPlotWithConfiguration(plotConfiguration, activity);
     }
+		trace.mark("plotInit");
+
+		SentHistoryIndex.build();
+		trace.mark("sentHistoryIndex");
 		
 		handleNotifications();
+		trace.mark("notificationQueue");
+		trace.finished(null);
+	}
+
+	@Kroll.method
+	public HashMap getStartupTrace() {
+		StartupTrace trace = StartupTrace.getLatest();
+		return trace != null ? trace.toMap() : null;
+	}
+
+	private void initDuplicateSuppression(HashMap configuration, SharedPreferences.Editor editor) {
+		if (configuration.containsKey(DUPLICATE_SUPPRESSION_ENABLED) && !(configuration.get(DUPLICATE_SUPPRESSION_ENABLED) instanceof Boolean)) {
+			throw new IllegalArgumentException("DuplicateSuppressionEnabled not specified correctly.");
+		}
+		if (configuration.containsKey(DUPLICATE_SUPPRESSION_FALSE_POSITIVE_RATE)) {
+			Object rate = configuration.get(DUPLICATE_SUPPRESSION_FALSE_POSITIVE_RATE);
+			if (!(rate instanceof Number) || ((Number) rate).doubleValue() <= 0 || ((Number) rate).doubleValue() >= 1) {
+				throw new IllegalArgumentException("DuplicateSuppressionFalsePositiveRate not specified correctly.");
+			}
+		}
+		if (configuration.containsKey(DUPLICATE_SUPPRESSION_MEMORY_BUDGET)
+				&& !(configuration.get(DUPLICATE_SUPPRESSION_MEMORY_BUDGET) instanceof Integer && (Integer) configuration.get(DUPLICATE_SUPPRESSION_MEMORY_BUDGET) > 0)) {
+			throw new IllegalArgumentException("DuplicateSuppressionMemoryBudget not specified correctly.");
+		}
+		if (configuration.containsKey(DUPLICATE_SUPPRESSION_WINDOW)
+				&& !(configuration.get(DUPLICATE_SUPPRESSION_WINDOW) instanceof Integer && (Integer) configuration.get(DUPLICATE_SUPPRESSION_WINDOW) > 0)) {
+			throw new IllegalArgumentException("DuplicateSuppressionWindow not specified correctly.");
+		}
+
+		if (configuration.containsKey(DUPLICATE_SUPPRESSION_ENABLED)) {
+			SettingsUtil.setDuplicateSuppressionEnabled(editor, (Boolean) configuration.get(DUPLICATE_SUPPRESSION_ENABLED));
+		}
+		if (configuration.containsKey(DUPLICATE_SUPPRESSION_FALSE_POSITIVE_RATE)) {
+			SettingsUtil.setDuplicateSuppressionFalsePositiveRate(editor, ((Number) configuration.get(DUPLICATE_SUPPRESSION_FALSE_POSITIVE_RATE)).doubleValue());
+		}
+		if (configuration.containsKey(DUPLICATE_SUPPRESSION_MEMORY_BUDGET)) {
+			SettingsUtil.setDuplicateSuppressionMemoryBudget(editor, (Integer) configuration.get(DUPLICATE_SUPPRESSION_MEMORY_BUDGET));
+		}
+		if (configuration.containsKey(DUPLICATE_SUPPRESSION_WINDOW)) {
+			SettingsUtil.setDuplicateSuppressionWindow(editor, (Integer) configuration.get(DUPLICATE_SUPPRESSION_WINDOW));
+		}
+	}
+
+	private boolean initGeotriggerDecisionCache(HashMap configuration, SharedPreferences.Editor editor) {
+		if (configuration.containsKey(GEOTRIGGER_DECISION_CACHE_ENABLED) && !(configuration.get(GEOTRIGGER_DECISION_CACHE_ENABLED) instanceof Boolean)) {
+			throw new IllegalArgumentException("GeotriggerDecisionCacheEnabled not specified correctly.");
+		}
+		if (configuration.containsKey(GEOTRIGGER_DECISION_CACHE_TTL) && !(configuration.get(GEOTRIGGER_DECISION_CACHE_TTL) instanceof Integer)) {
+			throw new IllegalArgumentException("GeotriggerDecisionCacheTtl not specified correctly.");
+		}
+		if (configuration.containsKey(GEOTRIGGER_DECISION_CACHE_SIZE) && !(configuration.get(GEOTRIGGER_DECISION_CACHE_SIZE) instanceof Integer)) {
+			throw new IllegalArgumentException("GeotriggerDecisionCacheSize not specified correctly.");
+		}
+
+		boolean cacheChanged = (configuration.containsKey(GEOTRIGGER_DECISION_CACHE_TTL)
+				&& (Integer) configuration.get(GEOTRIGGER_DECISION_CACHE_TTL) != SettingsUtil.getGeotriggerDecisionCacheTtl())
+				|| (configuration.containsKey(GEOTRIGGER_DECISION_CACHE_SIZE)
+				&& (Integer) configuration.get(GEOTRIGGER_DECISION_CACHE_SIZE) != SettingsUtil.getGeotriggerDecisionCacheSize());
+		if (configuration.containsKey(GEOTRIGGER_DECISION_CACHE_ENABLED)) {
+			SettingsUtil.setGeotriggerDecisionCacheEnabled(editor, (Boolean) configuration.get(GEOTRIGGER_DECISION_CACHE_ENABLED));
+		}
+		if (configuration.containsKey(GEOTRIGGER_DECISION_CACHE_TTL)) {
+			SettingsUtil.setGeotriggerDecisionCacheTtl(editor, (Integer) configuration.get(GEOTRIGGER_DECISION_CACHE_TTL));
+		}
+		if (configuration.containsKey(GEOTRIGGER_DECISION_CACHE_SIZE)) {
+			SettingsUtil.setGeotriggerDecisionCacheSize(editor, (Integer) configuration.get(GEOTRIGGER_DECISION_CACHE_SIZE));
+		}
+		return cacheChanged;
+	}
+
+	private void initGeotriggerDeferred(HashMap configuration, SharedPreferences.Editor editor) {
+		if (configuration.containsKey(GEOTRIGGER_DEFERRED_ENABLED) && !(configuration.get(GEOTRIGGER_DEFERRED_ENABLED) instanceof Boolean)) {
+			throw new IllegalArgumentException("GeotriggerDeferredEnabled not specified correctly.");
+		}
+		if (configuration.containsKey(GEOTRIGGER_DEFERRED_REQUIRE_UNMETERED) && !(configuration.get(GEOTRIGGER_DEFERRED_REQUIRE_UNMETERED) instanceof Boolean)) {
+			throw new IllegalArgumentException("GeotriggerDeferredRequireUnmetered not specified correctly.");
+		}
+		if (configuration.containsKey(GEOTRIGGER_DEFERRED_REQUIRE_CHARGING) && !(configuration.get(GEOTRIGGER_DEFERRED_REQUIRE_CHARGING) instanceof Boolean)) {
+			throw new IllegalArgumentException("GeotriggerDeferredRequireCharging not specified correctly.");
+		}
+		if (configuration.containsKey(GEOTRIGGER_DEFERRED_MAX_DELAY)
+				&& !(configuration.get(GEOTRIGGER_DEFERRED_MAX_DELAY) instanceof Integer && (Integer) configuration.get(GEOTRIGGER_DEFERRED_MAX_DELAY) >= 0)) {
+			throw new IllegalArgumentException("GeotriggerDeferredMaxDelay not specified correctly.");
+		}
+
+		if (configuration.containsKey(GEOTRIGGER_DEFERRED_ENABLED)) {
+			SettingsUtil.setGeotriggerDeferredEnabled(editor, (Boolean) configuration.get(GEOTRIGGER_DEFERRED_ENABLED));
+		}
+		if (configuration.containsKey(GEOTRIGGER_DEFERRED_REQUIRE_UNMETERED)) {
+			SettingsUtil.setGeotriggerDeferredRequireUnmetered(editor, (Boolean) configuration.get(GEOTRIGGER_DEFERRED_REQUIRE_UNMETERED));
+		}
+		if (configuration.containsKey(GEOTRIGGER_DEFERRED_REQUIRE_CHARGING)) {
+			SettingsUtil.setGeotriggerDeferredRequireCharging(editor, (Boolean) configuration.get(GEOTRIGGER_DEFERRED_REQUIRE_CHARGING));
+		}
+		if (configuration.containsKey(GEOTRIGGER_DEFERRED_MAX_DELAY)) {
+			SettingsUtil.setGeotriggerDeferredMaxDelay(editor, (Integer) configuration.get(GEOTRIGGER_DEFERRED_MAX_DELAY));
+		}
+	}
+
+	/**
+	 * @return whether the recorded trace has to be cleared, as a trace is either anonymized or not
+	 */
+	private boolean initBatchRecording(HashMap configuration, SharedPreferences.Editor editor) {
+		if (configuration.containsKey(BATCH_RECORDING_ENABLED) && !(configuration.get(BATCH_RECORDING_ENABLED) instanceof Boolean)) {
+			throw new IllegalArgumentException("BatchRecordingEnabled not specified correctly.");
+		}
+		if (configuration.containsKey(BATCH_RECORDING_ANONYMIZED) && !(configuration.get(BATCH_RECORDING_ANONYMIZED) instanceof Boolean)) {
+			throw new IllegalArgumentException("BatchRecordingAnonymized not specified correctly.");
+		}
+		if (configuration.containsKey(BATCH_RECORDING_MAX_SIZE)
+				&& !(configuration.get(BATCH_RECORDING_MAX_SIZE) instanceof Integer && (Integer) configuration.get(BATCH_RECORDING_MAX_SIZE) > 0)) {
+			throw new IllegalArgumentException("BatchRecordingMaxSize not specified correctly.");
+		}
+
+		if (configuration.containsKey(BATCH_RECORDING_ENABLED)) {
+			SettingsUtil.setBatchRecordingEnabled(editor, (Boolean) configuration.get(BATCH_RECORDING_ENABLED));
+		}
+		boolean anonymizedChanged = false;
+		if (configuration.containsKey(BATCH_RECORDING_ANONYMIZED)) {
+			boolean anonymized = (Boolean) configuration.get(BATCH_RECORDING_ANONYMIZED);
+			anonymizedChanged = anonymized != SettingsUtil.isBatchRecordingAnonymized();
+			SettingsUtil.setBatchRecordingAnonymized(editor, anonymized);
+		}
+		if (configuration.containsKey(BATCH_RECORDING_MAX_SIZE)) {
+			SettingsUtil.setBatchRecordingMaxSize(editor, (Integer) configuration.get(BATCH_RECORDING_MAX_SIZE));
+		}
+		return anonymizedChanged;
+	}
+
+	private void initModuleLog(HashMap configuration, SharedPreferences.Editor editor) {
+		if (configuration.containsKey(MODULE_LOG_LEVEL)
+				&& !(configuration.get(MODULE_LOG_LEVEL) instanceof String && ModuleLog.parseLevel((String) configuration.get(MODULE_LOG_LEVEL)) != -1)) {
+			throw new IllegalArgumentException("ModuleLogLevel not specified correctly.");
+		}
+		if (configuration.containsKey(MODULE_LOG_FILE_ENABLED) && !(configuration.get(MODULE_LOG_FILE_ENABLED) instanceof Boolean)) {
+			throw new IllegalArgumentException("ModuleLogFileEnabled not specified correctly.");
+		}
+
+		if (configuration.containsKey(MODULE_LOG_LEVEL)) {
+			SettingsUtil.setModuleLogLevel(editor, ModuleLog.parseLevel((String) configuration.get(MODULE_LOG_LEVEL)));
+		}
+		if (configuration.containsKey(MODULE_LOG_FILE_ENABLED)) {
+			SettingsUtil.setModuleLogFileEnabled(editor, (Boolean) configuration.get(MODULE_LOG_FILE_ENABLED));
+		}
+	}
+
+	@Kroll.method
+	public HashMap[] getRecentLogEntries(@Kroll.argument(optional=true) Integer count) {
+		return ModuleLog.getRecentEntries(count != null ? count : Integer.MAX_VALUE);
+	}
+
+	@Kroll.method
+	public String[] getModuleLogFiles() {
+		return toPaths(ModuleLog.getFiles());
+	}
+
+	@Kroll.method
+	public String[] getBatchRecordingFiles() {
+		return toPaths(BatchRecorder.getFiles());
+	}
+
+	private static String[] toPaths(List<File> files) {
+		String[] result = new String[files.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = files.get(i).getAbsolutePath();
+		}
+		return result;
+	}
+
+	@Kroll.method
+	public void clearBatchRecording() {
+		BatchRecorder.clear();
+	}
+
+	@Kroll.method
+	public void clearGeotriggerDecisionCache() {
+		GeotriggerDecisionCache.clear();
 	}
 
   @SuppressWarnings("deprecation") // Plot.init with a config is deprecated... we know this
-  private void initPlotWithConfiguration(HashMap configuration, Activity activity) {
+  private void initPlotWithConfiguration(PlotConfiguration config, Activity activity) {
+		Plot.init(activity, config);
+  }
+
+  @SuppressWarnings("deprecation") // the configuration is only used by the deprecated Plot.init
+  private static PlotConfiguration createPlotConfiguration(HashMap configuration) {
     if (!(configuration.get(PUBLIC_TOKEN_FIELD) instanceof String)) {
 			throw new IllegalArgumentException("Public key not specified correctly.");
 		}
@@ -159,8 +621,7 @@ public class PlotAndroidModule extends KrollModule implements NotificationQueue.
 		else if (configuration.containsKey(ENABLE_ON_FIRST_RUN_FIELD)) {
 			config.setEnableOnFirstRun((Boolean) configuration.get(ENABLE_ON_FIRST_RUN_FIELD));
 		}
-		
-		Plot.init(activity, config);
+		return config;
   }
 
 	@Kroll.method
@@ -194,45 +655,159 @@ public class PlotAndroidModule extends KrollModule implements NotificationQueue.
 	}
 	
 	@Kroll.method
-	public HashMap popFilterableNotifications() {
+	public HashMap popFilterableNotifications(@Kroll.argument(optional=true) HashMap options) {
 		NotificationsAndId notificationsAndId = NotificationBatches.popBatch();
+		if (notificationsAndId == null) {
+			// the batch was already completed because too many batches were pending
+			notificationsAndId = new NotificationsAndId(new ArrayList<FilterableNotification>(), null);
+		}
 
-		HashMap<String, Object> result = new HashMap<String, Object>();
-		result.put("filterId", notificationsAndId.getId());
-		result.put("notifications", JsonUtil.notificationsToMap(notificationsAndId.getNotifications()));
+		HashMap<String, Object> result = new HashMap<String, Object>(4);
+		result.put(FILTER_ID_FIELD, notificationsAndId.getId());
+		long start = System.nanoTime();
+		if (isLazy(options)) {
+			result.put(NOTIFICATIONS_FIELD, JsonUtil.notificationsToProxies(notificationsAndId.getNotifications()));
+			ModuleMetrics.add(METRIC_LAZY_CONVERSION_NANOS, System.nanoTime() - start);
+			ModuleMetrics.add(METRIC_LAZY_CONVERSION_ITEMS, notificationsAndId.getNotifications().size());
+		} else {
+			result.put(NOTIFICATIONS_FIELD, JsonUtil.notificationsToMap(notificationsAndId.getNotifications()));
+			ModuleMetrics.add(METRIC_EAGER_CONVERSION_NANOS, System.nanoTime() - start);
+			ModuleMetrics.add(METRIC_EAGER_CONVERSION_ITEMS, notificationsAndId.getNotifications().size());
+		}
 		return result;
 	}
+
+	private static boolean isLazy(HashMap options) {
+		if (options == null || !options.containsKey(LAZY_FIELD)) {
+			return false;
+		}
+		if (!(options.get(LAZY_FIELD) instanceof Boolean)) {
+			throw new IllegalArgumentException("Lazy not specified correctly.");
+		}
+		return (Boolean) options.get(LAZY_FIELD);
+	}
 	
 	@Kroll.method
 	public void sendNotifications(HashMap batch) {
-		String filterId = (String) batch.get("filterId");
+		String filterId = (String) batch.get(FILTER_ID_FIELD);
 		List<FilterableNotification> notifications = NotificationBatches.getBatch(filterId);
+		if (notifications == null) {
+			return;
+		}
 		
-		Object[] jsonNotifications = (Object[]) batch.get("notifications");
+		Object[] jsonNotifications = (Object[]) batch.get(NOTIFICATIONS_FIELD);
 		List<FilterableNotification> notificationsToSend = JsonUtil.getNotifications(jsonNotifications, notifications);
 		NotificationBatches.sendBatch(filterId, notificationsToSend);
 	}
 
 	@Kroll.method
-	public HashMap popGeotriggers() {
+	public HashMap popFilterableNotificationsChunk(String filterId, int size, @Kroll.argument(optional=true) HashMap options) {
+		NotificationsAndId chunk = NotificationBatches.popChunk(filterId, size);
+		if (chunk == null) {
+			return null;
+		}
+
+		HashMap<String, Object> result = new HashMap<String, Object>(5);
+		result.put(FILTER_ID_FIELD, chunk.getId());
+		result.put(CHUNK_ID_FIELD, chunk.getChunkId());
+		result.put(REMAINING_FIELD, chunk.getRemaining());
+		if (isLazy(options)) {
+			result.put(NOTIFICATIONS_FIELD, JsonUtil.notificationsToProxies(chunk.getNotifications()));
+		} else {
+			result.put(NOTIFICATIONS_FIELD, JsonUtil.notificationsToMap(chunk.getNotifications()));
+		}
+		return result;
+	}
+
+	@Kroll.method
+	public boolean submitNotificationsChunk(HashMap chunk) {
+		String filterId = (String) chunk.get(FILTER_ID_FIELD);
+		List<FilterableNotification> notifications = NotificationBatches.getBatch(filterId);
+		if (notifications == null) {
+			throw new IllegalArgumentException(String.format("Unknown filterId: %s", filterId));
+		}
+
+		Object[] jsonNotifications = (Object[]) chunk.get(NOTIFICATIONS_FIELD);
+		List<FilterableNotification> notificationsToSend = JsonUtil.getNotifications(jsonNotifications, notifications);
+		return NotificationBatches.submitChunk(filterId, getChunkId(chunk), notificationsToSend);
+	}
+
+	private static int getChunkId(HashMap chunk) {
+		Object chunkId = chunk.get(CHUNK_ID_FIELD);
+		if (!(chunkId instanceof Number)) {
+			throw new IllegalArgumentException("ChunkId not specified correctly.");
+		}
+		return ((Number) chunkId).intValue();
+	}
+
+	@Kroll.method
+	public HashMap popGeotriggers(@Kroll.argument(optional=true) HashMap options) {
 		GeotriggersAndId geotriggersAndId = GeotriggerBatches.popBatch();
+		if (geotriggersAndId == null) {
+			// the batch was already completed because too many batches were pending
+			geotriggersAndId = new GeotriggersAndId(new ArrayList<Geotrigger>(), null);
+		}
 
-		HashMap<String, Object> result = new HashMap<String, Object>();
-		result.put("handlerId", geotriggersAndId.getId());
-		result.put("geotriggers", JsonUtil.geotriggersToMap(geotriggersAndId.getGeotriggers()));
+		HashMap<String, Object> result = new HashMap<String, Object>(4);
+		result.put(HANDLER_ID_FIELD, geotriggersAndId.getId());
+		long start = System.nanoTime();
+		if (isLazy(options)) {
+			result.put(GEOTRIGGERS_FIELD, JsonUtil.geotriggersToProxies(geotriggersAndId.getGeotriggers()));
+			ModuleMetrics.add(METRIC_LAZY_CONVERSION_NANOS, System.nanoTime() - start);
+			ModuleMetrics.add(METRIC_LAZY_CONVERSION_ITEMS, geotriggersAndId.getGeotriggers().size());
+		} else {
+			result.put(GEOTRIGGERS_FIELD, JsonUtil.geotriggersToMap(geotriggersAndId.getGeotriggers()));
+			ModuleMetrics.add(METRIC_EAGER_CONVERSION_NANOS, System.nanoTime() - start);
+			ModuleMetrics.add(METRIC_EAGER_CONVERSION_ITEMS, geotriggersAndId.getGeotriggers().size());
+		}
 		return result;
 	}
 
 	@Kroll.method
 	public void markGeotriggersHandled(HashMap batch) {
-		String handlerId = (String) batch.get("handlerId");
+		String handlerId = (String) batch.get(HANDLER_ID_FIELD);
 		List<Geotrigger> geotriggers = GeotriggerBatches.getBatch(handlerId);
+		if (geotriggers == null) {
+			return;
+		}
 
-		Object[] jsonGeotriggers = (Object[]) batch.get("geotriggers");
+		Object[] jsonGeotriggers = (Object[]) batch.get(GEOTRIGGERS_FIELD);
 		List<Geotrigger> geotriggersHandled = JsonUtil.getGeotriggers(jsonGeotriggers, geotriggers);
 		GeotriggerBatches.sendBatch(handlerId, geotriggersHandled);
 	}
 
+	@Kroll.method
+	public HashMap popGeotriggersChunk(String handlerId, int size, @Kroll.argument(optional=true) HashMap options) {
+		GeotriggersAndId chunk = GeotriggerBatches.popChunk(handlerId, size);
+		if (chunk == null) {
+			return null;
+		}
+
+		HashMap<String, Object> result = new HashMap<String, Object>(5);
+		result.put(HANDLER_ID_FIELD, chunk.getId());
+		result.put(CHUNK_ID_FIELD, chunk.getChunkId());
+		result.put(REMAINING_FIELD, chunk.getRemaining());
+		if (isLazy(options)) {
+			result.put(GEOTRIGGERS_FIELD, JsonUtil.geotriggersToProxies(chunk.getGeotriggers()));
+		} else {
+			result.put(GEOTRIGGERS_FIELD, JsonUtil.geotriggersToMap(chunk.getGeotriggers()));
+		}
+		return result;
+	}
+
+	@Kroll.method
+	public boolean submitGeotriggersChunk(HashMap chunk) {
+		String handlerId = (String) chunk.get(HANDLER_ID_FIELD);
+		List<Geotrigger> geotriggers = GeotriggerBatches.getBatch(handlerId);
+		if (geotriggers == null) {
+			throw new IllegalArgumentException(String.format("Unknown handlerId: %s", handlerId));
+		}
+
+		Object[] jsonGeotriggers = (Object[]) chunk.get(GEOTRIGGERS_FIELD);
+		List<Geotrigger> geotriggersHandled = JsonUtil.getGeotriggers(jsonGeotriggers, geotriggers);
+		return GeotriggerBatches.submitChunk(handlerId, getChunkId(chunk), geotriggersHandled);
+	}
+
   @Kroll.method
   public void setStringSegmentationProperty(String property, String value) {
     Plot.setStringSegmentationProperty(property, value);
@@ -265,7 +840,7 @@ public class PlotAndroidModule extends KrollModule implements NotificationQueue.
   
   @Kroll.getProperty @Kroll.method
   public HashMap[] getLoadedGeotriggers() {
-  	return JsonUtil.geotriggersToMap(new ArrayList(Plot.getLoadedGeotriggers()));
+  	return JsonUtil.loadedGeotriggersToMap(new ArrayList(Plot.getLoadedGeotriggers()));
   }
   
   @Kroll.getProperty @Kroll.method
@@ -281,12 +856,117 @@ public class PlotAndroidModule extends KrollModule implements NotificationQueue.
   @Kroll.method
   public void clearSentNotifications() {
   	Plot.clearSentNotifications();
+  	SentHistoryIndex.clear();
   }
   
 	@Kroll.method
   public void clearSentGeotriggers() {
   	Plot.clearSentGeotriggers();
   }
+
+	@Kroll.method
+	public HashMap getMetrics() {
+		HashMap<String, Object> metrics = ModuleMetrics.snapshot();
+		metrics.put("notificationBatchesPending", NotificationBatches.getPendingCount());
+		metrics.put("notificationBatchesActive", NotificationBatches.getActiveCount());
+		metrics.put(NotificationBatches.METRIC_PEAK_PENDING, NotificationBatches.getPeakPendingCount());
+		metrics.put("geotriggerBatchesPending", GeotriggerBatches.getPendingCount());
+		metrics.put("geotriggerBatchesActive", GeotriggerBatches.getActiveCount());
+		metrics.put(GeotriggerBatches.METRIC_PEAK_PENDING, GeotriggerBatches.getPeakPendingCount());
+		metrics.put("geotriggerScriptsWaiting", BatchScheduler.getDeferredCount());
+		return metrics;
+	}
+
+	@Kroll.method
+	public boolean wasSent(String id) {
+		return SentHistoryIndex.wasSent(id);
+	}
+
+	@Kroll.method
+	public Object lastSent(String id) {
+		return SentHistoryIndex.lastSent(id);
+	}
+
+	@Kroll.method
+	public Object lastOpened(String id) {
+		return SentHistoryIndex.lastOpened(id);
+	}
+
+	@Kroll.method
+	public void exportSentHistory(final String path, final String format, @Kroll.argument(optional=true) HashMap options) {
+		if (path == null) {
+			throw new IllegalArgumentException("No export path provided.");
+		}
+		if (!HistoryExporter.isSupportedFormat(format)) {
+			throw new IllegalArgumentException("Export format must be 'binary' or 'csv'.");
+		}
+		if (options == null) {
+			options = new HashMap();
+		}
+
+		if (options.containsKey(EXPORT_GZIP_FIELD) && !(options.get(EXPORT_GZIP_FIELD) instanceof Boolean)) {
+			throw new IllegalArgumentException("Gzip not specified correctly.");
+		}
+		final boolean gzip = Boolean.TRUE.equals(options.get(EXPORT_GZIP_FIELD));
+
+		if (options.containsKey(EXPORT_SINCE_FIELD) && !(options.get(EXPORT_SINCE_FIELD) instanceof Number)) {
+			throw new IllegalArgumentException("Since not specified correctly.");
+		}
+		final long since = options.containsKey(EXPORT_SINCE_FIELD) ? ((Number) options.get(EXPORT_SINCE_FIELD)).longValue() : 0L;
+
+		final List<String> sinceKeys = new ArrayList<String>();
+		if (options.containsKey(EXPORT_SINCE_KEYS_FIELD)) {
+			if (!(options.get(EXPORT_SINCE_KEYS_FIELD) instanceof Object[])) {
+				throw new IllegalArgumentException("SinceKeys not specified correctly.");
+			}
+			for (Object key : (Object[]) options.get(EXPORT_SINCE_KEYS_FIELD)) {
+				if (!(key instanceof String)) {
+					throw new IllegalArgumentException("SinceKeys not specified correctly.");
+				}
+				sinceKeys.add((String) key);
+			}
+		}
+
+		Object include = options.containsKey(EXPORT_INCLUDE_FIELD) ? options.get(EXPORT_INCLUDE_FIELD) : "all";
+		if (!"all".equals(include) && !"notifications".equals(include) && !"geotriggers".equals(include)) {
+			throw new IllegalArgumentException("Include must be 'all', 'notifications' or 'geotriggers'.");
+		}
+		final boolean includeNotifications = !"geotriggers".equals(include);
+		final boolean includeGeotriggers = !"notifications".equals(include);
+
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					Collection<SentNotification> notifications = includeNotifications ? Plot.getSentNotifications() : new ArrayList<SentNotification>();
+					Collection<SentGeotrigger> geotriggers = includeGeotriggers ? Plot.getSentGeotriggers() : new ArrayList<SentGeotrigger>();
+					HistoryExporter.Watermark watermark = HistoryExporter.export(new File(path), format, gzip, since, sinceKeys,
+							notifications, geotriggers,
+							new HistoryExporter.ProgressListener() {
+								public void onProgress(int exported, int total) {
+									HashMap<String, Object> progress = new HashMap<String, Object>();
+									progress.put("path", path);
+									progress.put("exported", exported);
+									progress.put("total", total);
+									fireEvent(EXPORT_PROGRESS_EVENT, progress);
+								}
+							});
+
+					HashMap<String, Object> result = new HashMap<String, Object>();
+					result.put("path", path);
+					result.put("watermark", watermark.getTime());
+					result.put("watermarkKeys", watermark.getKeys().toArray(new String[0]));
+					fireEvent(EXPORT_COMPLETED_EVENT, result);
+				} catch (Exception e) {
+					// any failure must reach the app, otherwise it would wait for the export forever
+					ModuleLog.e(e, "Error exporting sent history to %s", path);
+					HashMap<String, Object> result = new HashMap<String, Object>();
+					result.put("path", path);
+					result.put("error", e.getMessage() != null ? e.getMessage() : e.toString());
+					fireEvent(EXPORT_FAILED_EVENT, result);
+				}
+			}
+		}, "PlotHistoryExport").start();
+	}
   
 
 }
@@ -0,0 +1,253 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.appcelerator.titanium.TiApplication;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+/**
+ * Detects whether the notification filter and geotrigger handler services are configured to run in a process of
+ * their own, for example <code>:plot</code>, instead of the process of the app. See the readme for the configuration
+ * in tiapp.xml.
+ *
+ * When they are, state that both processes use is marked with a new version whenever a process changes it, so the
+ * other process knows it has to reload its copy. The version of every state is kept in a file of its own, which is
+ * replaced by renaming a complete file, so a process never reads a partial version.
+ *
+ * A process keeps the versions it has seen in memory and only reads the files again after recheckSharedState, which
+ * is called when a service starts and when the app is resumed. Changes made by the other process in the meantime
+ * are noticed at the next of those.
+ */
+final class PlotProcess {
+	private static final String SHARED_STATE_DIR = "plot-shared-state";
+
+	private static final Object lock = new Object();
+	private static final Random random = new Random();
+	private static volatile Boolean separateProcess;
+	private static String processName;
+	// incremented to make the shared states read their versions again
+	private static volatile int recheckGeneration = 0;
+
+	private PlotProcess() {
+	}
+
+	/**
+	 * @return whether the services run in another process than the app
+	 */
+	static boolean isSeparateProcess() {
+		Boolean known = separateProcess;
+		if (known != null) {
+			return known;
+		}
+		String[] mismatch = null;
+		boolean result;
+		synchronized(lock) {
+			if (separateProcess == null) {
+				Context context = TiApplication.getInstance();
+				String appProcess = context.getApplicationInfo().processName;
+				String filterProcess = getServiceProcess(context, NotificationFilterService.class);
+				String handlerProcess = getServiceProcess(context, GeotriggerHandlerService.class);
+				String jobProcess = getServiceProcess(context, GeotriggerJobService.class);
+				separateProcess = (filterProcess != null && !filterProcess.equals(appProcess))
+						|| (handlerProcess != null && !handlerProcess.equals(appProcess));
+				if (handlerProcess != null && jobProcess != null && !handlerProcess.equals(jobProcess)) {
+					mismatch = new String[] { jobProcess, handlerProcess };
+				}
+			}
+			result = separateProcess;
+		}
+		if (mismatch != null) {
+			// logged outside the lock, as the log reads the settings, which depend on the result
+			ModuleLog.w("GeotriggerJobService runs in process %s and GeotriggerHandlerService in %s, deferred geotriggers "
+					+ "need both services in the same process", (Object[]) mismatch);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the name of the current process, or null when it can't be determined
+	 */
+	static String getProcessName() {
+		synchronized(lock) {
+			if (processName == null) {
+				processName = readProcessName();
+			}
+			return processName;
+		}
+	}
+
+	/**
+	 * @return the part of the process name after the colon, or null for the process of the app
+	 */
+	static String getProcessSuffix() {
+		String name = getProcessName();
+		int separator = name != null ? name.indexOf(':') : -1;
+		return separator >= 0 ? name.substring(separator + 1) : null;
+	}
+
+	private static String getServiceProcess(Context context, Class<?> service) {
+		try {
+			return context.getPackageManager().getServiceInfo(new ComponentName(context, service), 0).processName;
+		} catch (PackageManager.NameNotFoundException e) {
+			return null;
+		}
+	}
+
+	private static String readProcessName() {
+		try {
+			InputStream in = new FileInputStream("/proc/self/cmdline");
+			try {
+				byte[] buffer = new byte[256];
+				int length = 0;
+				int read;
+				while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) > 0) {
+					length += read;
+				}
+				int end = 0;
+				while (end < length && buffer[end] != 0) {
+					end++;
+				}
+				return new String(buffer, 0, end, "UTF-8");
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Makes every shared state read its version again on its next use.
+	 */
+	static void recheckSharedState() {
+		synchronized(lock) {
+			recheckGeneration++;
+		}
+	}
+
+	/**
+	 * State that is shared by the processes. Does nothing when the services run in the process of the app.
+	 */
+	static final class SharedState {
+		private final String name;
+		private long seenVersion;
+		private boolean seen = false;
+		private int checkedGeneration = -1;
+
+		SharedState(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Call with the lock of the state held.
+		 *
+		 * @return whether another process changed the state since the version was last read
+		 */
+		boolean changedElsewhere() {
+			if (!isSeparateProcess()) {
+				return false;
+			}
+			int generation = recheckGeneration;
+			if (generation == checkedGeneration) {
+				return false;
+			}
+			checkedGeneration = generation;
+			long version = readVersion();
+			boolean result = seen && version != seenVersion;
+			seenVersion = version;
+			seen = true;
+			return result;
+		}
+
+		/**
+		 * Marks the state as changed by this process. Call with the lock of the state held, after the change is
+		 * stored.
+		 */
+		void changed() {
+			if (!isSeparateProcess()) {
+				return;
+			}
+			long version;
+			synchronized(random) {
+				version = random.nextLong();
+			}
+			writeVersion(version);
+			seenVersion = version;
+			seen = true;
+		}
+
+		private File getVersionFile() {
+			File dir = new File(TiApplication.getInstance().getFilesDir(), SHARED_STATE_DIR);
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				ModuleLog.w("Couldn't create directory for shared state");
+			}
+			return new File(dir, name);
+		}
+
+		/**
+		 * @return the version written by the last change, or 0 when the state was never changed
+		 */
+		private long readVersion() {
+			try {
+				DataInputStream in = new DataInputStream(new FileInputStream(getVersionFile()));
+				try {
+					return in.readLong();
+				} finally {
+					in.close();
+				}
+			} catch (FileNotFoundException e) {
+				return 0;
+			} catch (IOException e) {
+				ModuleLog.w(e, "Couldn't read version of shared state %s", name);
+				return 0;
+			}
+		}
+
+		private void writeVersion(long version) {
+			File file = getVersionFile();
+			// a name per process, within a process the lock of the state is held
+			String suffix = getProcessSuffix();
+			File tempFile = new File(file.getPath() + "." + (suffix != null ? suffix : "app") + ".tmp");
+			try {
+				DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+				try {
+					out.writeLong(version);
+				} finally {
+					out.close();
+				}
+				if (!tempFile.renameTo(file)) {
+					throw new IOException(String.format("Couldn't move version to '%s'", file.getPath()));
+				}
+			} catch (IOException e) {
+				ModuleLog.w(e, "Couldn't write version of shared state %s", name);
+				tempFile.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,408 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.appcelerator.titanium.TiApplication;
+
+import com.plotprojects.retail.android.FilterableNotification;
+import com.plotprojects.retail.android.Geotrigger;
+
+/**
+ * Remembers the ids of notifications and geotriggers that were recently handled by the scripts, so a batch
+ * delivered again after a restart doesn't run the script again.
+ *
+ * The ids are kept in two generations of Bloom filters. Lookups check both generations and ids are added to the
+ * current one. When the current generation is older than the configured window it becomes the previous
+ * generation, so an id is remembered for at least one and at most two windows. The number of set bits of the current
+ * generation is counted, and when so many bits are set that a lookup in the generation would exceed half the
+ * configured false positive rate, the generation rotates before its window has passed. Lookups in both generations
+ * together therefore stay within the configured rate, at the cost of forgetting ids earlier when more ids are handled
+ * than fit in the memory budget. A notification found in the filters is only suppressed when the sent history
+ * confirms it was sent, so a false positive doesn't drop a new notification. Geotriggers have no such history, so a
+ * false positive suppresses a new geotrigger.
+ *
+ * Handled ids are written to the filter file in the background, shortly after they are added and outside the lock
+ * of the filter, so the threads completing batches don't wait for the disk. Ids added just before the process is
+ * killed can therefore be forgotten.
+ */
+final class RecentlyHandledFilter {
+	private static final String FILTER_FILE = "plot-recently-handled.bin";
+	private static final int FILTER_FILE_VERSION = 2;
+	private static final String NOTIFICATION_PREFIX = "n:";
+	private static final String GEOTRIGGER_PREFIX = "g:";
+	private static final long WRITE_DELAY_MILLIS = 2000;
+	private static final long MAX_BIT_COUNT = 1 << 30;
+
+	static final String METRIC_NOTIFICATIONS_SUPPRESSED = "duplicateNotificationsSuppressed";
+	static final String METRIC_GEOTRIGGERS_SUPPRESSED = "duplicateGeotriggersSuppressed";
+	static final String METRIC_BATCHES_SUPPRESSED = "duplicateBatchesSuppressed";
+
+	private static final Object lock = new Object();
+	private static final PlotProcess.SharedState sharedState = new PlotProcess.SharedState("recentlyhandled");
+	private static long[] currentBits;
+	private static long[] previousBits;
+	private static long currentStart;
+	private static int bitCount;
+	private static int hashCount;
+	private static int currentSetBits;
+	// rotate early when the current generation has this many bits set
+	private static int maxSetBits;
+	private static long windowMillis;
+	// whether ids were added or the generations rotated since the filter file was written
+	private static boolean dirty = false;
+	private static boolean writeScheduled = false;
+	private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "plot-recently-handled");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static final Runnable write = new Runnable() {
+		public void run() {
+			writeFilterFile();
+		}
+	};
+
+	private RecentlyHandledFilter() {
+	}
+
+	static boolean isEnabled() {
+		return SettingsUtil.isDuplicateSuppressionEnabled();
+	}
+
+	/**
+	 * @return the notifications that weren't recently handled
+	 */
+	static List<FilterableNotification> removeHandledNotifications(List<FilterableNotification> notifications) {
+		boolean[] positives = new boolean[notifications.size()];
+		synchronized(lock) {
+			ensureLoaded();
+			for (int i = 0; i < positives.length; i++) {
+				positives[i] = mightContain(NOTIFICATION_PREFIX + notifications.get(i).getId());
+			}
+		}
+		List<FilterableNotification> result = new ArrayList<FilterableNotification>(notifications.size());
+		for (int i = 0; i < positives.length; i++) {
+			FilterableNotification notification = notifications.get(i);
+			// the filter may report false positives, the sent history doesn't
+			if (!positives[i] || !SentHistoryIndex.wasSent(notification.getId())) {
+				result.add(notification);
+			}
+		}
+		ModuleMetrics.add(METRIC_NOTIFICATIONS_SUPPRESSED, notifications.size() - result.size());
+		if (result.isEmpty() && !notifications.isEmpty()) {
+			ModuleMetrics.increment(METRIC_BATCHES_SUPPRESSED);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the geotriggers that weren't recently handled
+	 */
+	static List<Geotrigger> removeHandledGeotriggers(List<Geotrigger> geotriggers) {
+		List<Geotrigger> result = new ArrayList<Geotrigger>(geotriggers.size());
+		synchronized(lock) {
+			ensureLoaded();
+			for (Geotrigger geotrigger : geotriggers) {
+				if (!mightContain(GEOTRIGGER_PREFIX + geotrigger.getId())) {
+					result.add(geotrigger);
+				}
+			}
+		}
+		ModuleMetrics.add(METRIC_GEOTRIGGERS_SUPPRESSED, geotriggers.size() - result.size());
+		if (result.isEmpty() && !geotriggers.isEmpty()) {
+			ModuleMetrics.increment(METRIC_BATCHES_SUPPRESSED);
+		}
+		return result;
+	}
+
+	static void addNotifications(List<FilterableNotification> notifications) {
+		if (notifications.isEmpty()) {
+			return;
+		}
+		synchronized(lock) {
+			ensureLoaded();
+			for (FilterableNotification notification : notifications) {
+				add(NOTIFICATION_PREFIX + notification.getId());
+			}
+			scheduleWrite();
+		}
+	}
+
+	static void addGeotriggers(List<Geotrigger> geotriggers) {
+		if (geotriggers.isEmpty()) {
+			return;
+		}
+		synchronized(lock) {
+			ensureLoaded();
+			for (Geotrigger geotrigger : geotriggers) {
+				add(GEOTRIGGER_PREFIX + geotrigger.getId());
+			}
+			scheduleWrite();
+		}
+	}
+
+	/**
+	 * Drops the filter, so it is created again with the current settings on the next use.
+	 */
+	static void reset() {
+		synchronized(lock) {
+			currentBits = null;
+			previousBits = null;
+			dirty = false;
+			sharedState.changed();
+		}
+	}
+
+	private static void ensureLoaded() {
+		long[] unwritten = null;
+		if (sharedState.changedElsewhere()) {
+			// the other process added to the filter or changed its settings
+			unwritten = dirty ? currentBits : null;
+			currentBits = null;
+		}
+		if (currentBits == null) {
+			double falsePositiveRate = SettingsUtil.getDuplicateSuppressionFalsePositiveRate();
+			// both generations share the memory budget
+			bitCount = (int) Math.min(MAX_BIT_COUNT, Math.max(64, SettingsUtil.getDuplicateSuppressionMemoryBudget() * 8L / 2));
+			hashCount = Math.max(1, (int) Math.round(-Math.log(falsePositiveRate) / Math.log(2)));
+			// a lookup in a generation is a false positive when all its bits are set
+			maxSetBits = Math.max(1, (int) (bitCount * Math.pow(falsePositiveRate / 2, 1.0 / hashCount)));
+			windowMillis = SettingsUtil.getDuplicateSuppressionWindow() * 1000L;
+			currentBits = new long[(bitCount + 63) / 64];
+			previousBits = new long[currentBits.length];
+			currentStart = System.currentTimeMillis();
+			readFilterFile();
+			if (unwritten != null && unwritten.length == currentBits.length) {
+				// keep the ids this process added but didn't write yet
+				for (int i = 0; i < unwritten.length; i++) {
+					currentBits[i] |= unwritten[i];
+				}
+				scheduleWrite();
+			}
+			currentSetBits = 0;
+			for (long value : currentBits) {
+				currentSetBits += Long.bitCount(value);
+			}
+			rotateWhenFull();
+		}
+		rotate();
+	}
+
+	/**
+	 * Writes the filter file shortly, together with the ids that are added in the meantime. Call with the lock
+	 * held.
+	 */
+	private static void scheduleWrite() {
+		dirty = true;
+		if (!writeScheduled) {
+			writeScheduled = true;
+			writer.schedule(write, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static void rotate() {
+		long now = System.currentTimeMillis();
+		if (now - currentStart < windowMillis && now >= currentStart) {
+			return;
+		}
+		if (now - currentStart >= 2 * windowMillis || now < currentStart) {
+			previousBits = new long[currentBits.length];
+		} else {
+			previousBits = currentBits;
+		}
+		currentBits = new long[previousBits.length];
+		currentSetBits = 0;
+		currentStart = now;
+		scheduleWrite();
+	}
+
+	/**
+	 * Starts a new generation when the current one can't take more ids without exceeding its share of the false
+	 * positive rate.
+	 */
+	private static void rotateWhenFull() {
+		if (currentSetBits < maxSetBits) {
+			return;
+		}
+		ModuleLog.d("Recently handled filter is full, rotating before the window has passed");
+		previousBits = currentBits;
+		currentBits = new long[previousBits.length];
+		currentSetBits = 0;
+		currentStart = System.currentTimeMillis();
+		scheduleWrite();
+	}
+
+	private static boolean mightContain(String id) {
+		long hash = hash(id);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		boolean inCurrent = true;
+		boolean inPrevious = true;
+		for (int i = 0; i < hashCount && (inCurrent || inPrevious); i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+			long mask = 1L << (bit & 63);
+			inCurrent &= (currentBits[bit >>> 6] & mask) != 0;
+			inPrevious &= (previousBits[bit >>> 6] & mask) != 0;
+		}
+		return inCurrent || inPrevious;
+	}
+
+	private static void add(String id) {
+		rotateWhenFull();
+		long hash = hash(id);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+			long mask = 1L << (bit & 63);
+			if ((currentBits[bit >>> 6] & mask) == 0) {
+				currentBits[bit >>> 6] |= mask;
+				currentSetBits++;
+			}
+		}
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the characters of the id, mixed with the MurmurHash3 finalizer. Ids often differ only in
+	 * their last characters, which FNV-1a alone spreads poorly over the upper bits.
+	 */
+	private static long hash(String id) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < id.length(); i++) {
+			hash ^= id.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private static File getFilterFile() {
+		return new File(TiApplication.getInstance().getFilesDir(), FILTER_FILE);
+	}
+
+	private static void readFilterFile() {
+		File file = getFilterFile();
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != FILTER_FILE_VERSION || in.readInt() != bitCount || in.readInt() != hashCount) {
+					// settings have changed, start with an empty filter
+					return;
+				}
+				long start = in.readLong();
+				long[] current = readBits(in);
+				long[] previous = readBits(in);
+				currentStart = start;
+				currentBits = current;
+				previousBits = previous;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			ModuleLog.w(e, "Couldn't read recently handled filter");
+		}
+	}
+
+	private static long[] readBits(DataInputStream in) throws IOException {
+		long[] bits = new long[currentBits.length];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = in.readLong();
+		}
+		return bits;
+	}
+
+	/**
+	 * Only called on the writer thread. The filter is copied with the lock held and written without it.
+	 */
+	private static void writeFilterFile() {
+		int bits;
+		int hashes;
+		long start;
+		long[] current;
+		long[] previous;
+		synchronized(lock) {
+			writeScheduled = false;
+			if (!dirty || currentBits == null) {
+				return;
+			}
+			dirty = false;
+			bits = bitCount;
+			hashes = hashCount;
+			start = currentStart;
+			current = currentBits.clone();
+			previous = previousBits.clone();
+		}
+
+		File file = getFilterFile();
+		File tempFile = null;
+		try {
+			// both processes may write the filter, so each writes its own temporary file
+			tempFile = File.createTempFile(FILTER_FILE, ".tmp", file.getParentFile());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try {
+				out.writeInt(FILTER_FILE_VERSION);
+				out.writeInt(bits);
+				out.writeInt(hashes);
+				out.writeLong(start);
+				for (long value : current) {
+					out.writeLong(value);
+				}
+				for (long value : previous) {
+					out.writeLong(value);
+				}
+			} finally {
+				out.close();
+			}
+			synchronized(lock) {
+				if (!tempFile.renameTo(file)) {
+					ModuleLog.w("Couldn't replace recently handled filter");
+					tempFile.delete();
+				} else {
+					sharedState.changed();
+				}
+			}
+		} catch (IOException e) {
+			ModuleLog.w(e, "Couldn't write recently handled filter");
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		}
+	}
+}
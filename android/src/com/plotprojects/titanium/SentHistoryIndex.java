@@ -0,0 +1,277 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.appcelerator.titanium.TiApplication;
+
+import android.os.SystemClock;
+
+import com.plotprojects.retail.android.Plot;
+import com.plotprojects.retail.android.SentNotification;
+
+/**
+ * Index from match identifier and notification identifier to the last sent and opened dates of sent notifications.
+ *
+ * The index is merged from the history kept by Plot, so entries survive after Plot drops them from its history.
+ * Lookups don't read the history of Plot. It is merged again when the module has sent a batch or a notification was
+ * opened, also when that happened in the other process when the services run in a process of their own. Plot can
+ * also send notifications without the module, for example when the notification filter is disabled, so the
+ * history is merged again as well when it wasn't merged for a minute.
+ */
+final class SentHistoryIndex {
+	private static final String INDEX_FILE = "plot-sent-index.bin";
+	private static final int INDEX_FILE_VERSION = 1;
+	private static final int MAX_ENTRIES = 10000;
+	private static final long RECHECK_MILLIS = 60 * 1000;
+
+	private static final Object lock = new Object();
+	private static final Map<String, IndexEntry> byMatchId = new BoundedMap();
+	private static final Map<String, IndexEntry> byNotificationId = new BoundedMap();
+	private static final PlotProcess.SharedState sharedState = new PlotProcess.SharedState("sentindex");
+	// marks sends and opens, so the other process merges the history again
+	private static final PlotProcess.SharedState historyState = new PlotProcess.SharedState("senthistory");
+	private static boolean loaded = false;
+	private static boolean stale = true;
+	private static long lastRefresh = 0;
+
+	private SentHistoryIndex() {
+	}
+
+	/**
+	 * Loads the persisted index, when enabled. Doesn't need Plot to be initialized.
+	 */
+	static void load() {
+		synchronized(lock) {
+			ensureLoaded();
+		}
+	}
+
+	/**
+	 * Loads the persisted index, when enabled, and merges the current history of Plot into it.
+	 */
+	static void build() {
+		synchronized(lock) {
+			ensureLoaded();
+			refresh(Plot.getSentNotifications());
+		}
+	}
+
+	/**
+	 * Called when the module sent notifications or a notification was opened, so the history of Plot changed.
+	 */
+	static void invalidate() {
+		synchronized(lock) {
+			stale = true;
+			historyState.changed();
+		}
+	}
+
+	static void clear() {
+		synchronized(lock) {
+			byMatchId.clear();
+			byNotificationId.clear();
+			stale = true;
+			getIndexFile().delete();
+			sharedState.changed();
+		}
+	}
+
+	static boolean wasSent(String id) {
+		return find(id) != null;
+	}
+
+	/**
+	 * @return the date the notification with the given match or notification identifier was last sent, or null
+	 */
+	static Long lastSent(String id) {
+		IndexEntry entry = find(id);
+		return entry != null ? entry.lastSent : null;
+	}
+
+	/**
+	 * @return the date the notification with the given match or notification identifier was last opened, or null
+	 */
+	static Long lastOpened(String id) {
+		IndexEntry entry = find(id);
+		return entry != null && entry.lastOpened != 0 ? entry.lastOpened : null;
+	}
+
+	private static IndexEntry find(String id) {
+		if (id == null) {
+			return null;
+		}
+		synchronized(lock) {
+			ensureLoaded();
+			if (historyState.changedElsewhere() || SystemClock.elapsedRealtime() - lastRefresh >= RECHECK_MILLIS) {
+				stale = true;
+			}
+			if (stale) {
+				refresh(Plot.getSentNotifications());
+			}
+			IndexEntry entry = byMatchId.get(id);
+			if (entry == null) {
+				entry = byNotificationId.get(id);
+			}
+			return entry;
+		}
+	}
+
+	private static void ensureLoaded() {
+		if (sharedState.changedElsewhere()) {
+			// the index file was written or cleared by the other process
+			byMatchId.clear();
+			byNotificationId.clear();
+			loaded = false;
+			stale = true;
+		}
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		if (SettingsUtil.isSentHistoryIndexPersistent()) {
+			readIndexFile();
+		}
+	}
+
+	private static void refresh(Collection<SentNotification> history) {
+		stale = false;
+		lastRefresh = SystemClock.elapsedRealtime();
+		boolean changed = false;
+		for (SentNotification notification : history) {
+			changed |= merge(byMatchId, notification.getMatchId(), notification);
+			changed |= merge(byNotificationId, notification.getId(), notification);
+		}
+		if (changed && SettingsUtil.isSentHistoryIndexPersistent()) {
+			writeIndexFile();
+		}
+	}
+
+	private static boolean merge(Map<String, IndexEntry> index, String key, SentNotification notification) {
+		if (key == null) {
+			return false;
+		}
+		long dateOpened = notification.isOpened() ? notification.getDateOpened() : 0;
+		IndexEntry entry = index.get(key);
+		if (entry == null) {
+			index.put(key, new IndexEntry(notification.getDateSent(), dateOpened));
+			return true;
+		}
+		if (entry.lastSent >= notification.getDateSent() && entry.lastOpened >= dateOpened) {
+			return false;
+		}
+		entry.lastSent = Math.max(entry.lastSent, notification.getDateSent());
+		entry.lastOpened = Math.max(entry.lastOpened, dateOpened);
+		return true;
+	}
+
+	private static File getIndexFile() {
+		return new File(TiApplication.getInstance().getFilesDir(), INDEX_FILE);
+	}
+
+	private static void readIndexFile() {
+		File file = getIndexFile();
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != INDEX_FILE_VERSION) {
+					return;
+				}
+				readEntries(in, byMatchId);
+				readEntries(in, byNotificationId);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			ModuleLog.w(e, "Couldn't read sent history index");
+			byMatchId.clear();
+			byNotificationId.clear();
+		}
+	}
+
+	private static void readEntries(DataInputStream in, Map<String, IndexEntry> index) throws IOException {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			String key = in.readUTF();
+			long lastSent = in.readLong();
+			long lastOpened = in.readLong();
+			index.put(key, new IndexEntry(lastSent, lastOpened));
+		}
+	}
+
+	private static void writeIndexFile() {
+		File file = getIndexFile();
+		File tempFile = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try {
+				out.writeInt(INDEX_FILE_VERSION);
+				writeEntries(out, byMatchId);
+				writeEntries(out, byNotificationId);
+			} finally {
+				out.close();
+			}
+			if (!tempFile.renameTo(file)) {
+				ModuleLog.w("Couldn't replace sent history index");
+			} else {
+				sharedState.changed();
+			}
+		} catch (IOException e) {
+			ModuleLog.w(e, "Couldn't write sent history index");
+		}
+	}
+
+	private static void writeEntries(DataOutputStream out, Map<String, IndexEntry> index) throws IOException {
+		out.writeInt(index.size());
+		for (Map.Entry<String, IndexEntry> e : index.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeLong(e.getValue().lastSent);
+			out.writeLong(e.getValue().lastOpened);
+		}
+	}
+
+	private static final class IndexEntry {
+		private long lastSent;
+		private long lastOpened;
+
+		public IndexEntry(long lastSent, long lastOpened) {
+			this.lastSent = lastSent;
+			this.lastOpened = lastOpened;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static final class BoundedMap extends LinkedHashMap<String, IndexEntry> {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, IndexEntry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	}
+}
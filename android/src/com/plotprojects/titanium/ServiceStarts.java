@@ -0,0 +1,87 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.app.Service;
+
+/**
+ * Keeps track of the start requests of a service that are still being handled, so the service is stopped only once
+ * all of them are done.
+ *
+ * <code>stopSelf(startId)</code> stops the service when <code>startId</code> is the latest start request. Batches are
+ * not completed in the order they arrived, because pending batches are ordered by deadline, so stopping the service
+ * for every completed batch could stop it while an earlier batch is still open. Only once no start request is open
+ * anymore is the service stopped, with the highest start id that was finished.
+ */
+final class ServiceStarts {
+	private static final Object lock = new Object();
+	private static final Map<Service, Starts> starts = new HashMap<Service, Starts>();
+
+	private ServiceStarts() {
+	}
+
+	/**
+	 * Marks the start request as open until it is finished. A start request can be opened more than once, it is
+	 * then open until it is finished as often.
+	 */
+	static void opened(Service service, int startId) {
+		synchronized(lock) {
+			Starts serviceStarts = starts.get(service);
+			if (serviceStarts == null) {
+				serviceStarts = new Starts();
+				starts.put(service, serviceStarts);
+			}
+			Integer count = serviceStarts.open.get(startId);
+			serviceStarts.open.put(startId, count == null ? 1 : count + 1);
+		}
+	}
+
+	/**
+	 * Finishes the start request, and stops the service when no other start request is open. Start requests that
+	 * weren't opened can be finished as well.
+	 */
+	static void finished(Service service, int startId) {
+		int stopId;
+		synchronized(lock) {
+			Starts serviceStarts = starts.get(service);
+			if (serviceStarts == null) {
+				serviceStarts = new Starts();
+				starts.put(service, serviceStarts);
+			}
+			Integer count = serviceStarts.open.get(startId);
+			if (count != null && count > 1) {
+				serviceStarts.open.put(startId, count - 1);
+			} else {
+				serviceStarts.open.remove(startId);
+			}
+			serviceStarts.highestFinished = Math.max(serviceStarts.highestFinished, startId);
+			if (!serviceStarts.open.isEmpty()) {
+				return;
+			}
+			starts.remove(service);
+			stopId = serviceStarts.highestFinished;
+		}
+		service.stopSelf(stopId);
+	}
+
+	private static final class Starts {
+		private final Map<Integer, Integer> open = new HashMap<Integer, Integer>();
+		private int highestFinished = 0;
+	}
+}
@@ -17,15 +17,39 @@ package com.plotprojects.titanium;
 
 import org.appcelerator.titanium.TiApplication;
 
+import android.content.Context;
 import android.content.SharedPreferences;
 
 public final class SettingsUtil {	
 	private SettingsUtil() {
 	}
 	
+	/**
+	 * The settings are only written by the process of the app. When the services run in a separate process, that
+	 * process asks Android to reload them when the file changed, which isn't guaranteed to pick up every change.
+	 * Settings changed while it runs are only certain to be used once it is started again.
+	 */
 	private static SharedPreferences getSharedPreferences() {
 		TiApplication tiApp = TiApplication.getInstance();
-		return tiApp.getSharedPreferences("plot-titanium", 0);
+		int mode = PlotProcess.isSeparateProcess() ? Context.MODE_MULTI_PROCESS : 0;
+		return tiApp.getSharedPreferences("plot-titanium", mode);
+	}
+	
+	/**
+	 * State written by the process that records batches, kept apart from the settings so the processes never write
+	 * the same file.
+	 */
+	private static SharedPreferences getRecorderPreferences() {
+		TiApplication tiApp = TiApplication.getInstance();
+		return tiApp.getSharedPreferences("plot-titanium-recorder", 0);
+	}
+
+	/**
+	 * Starts a change of the settings. The setters only add to the change, so all settings of a configuration are
+	 * written with a single <code>apply()</code>.
+	 */
+	public static SharedPreferences.Editor edit() {
+		return getSharedPreferences().edit();
 	}
 	
 	public static boolean isNotificationFilterEnabled() {
@@ -33,11 +57,8 @@ public final class SettingsUtil {
 		return sharedPreferences.getBoolean("notificationfilter", false);
 	}
 	
-	public static void setNotificationFilterEnabled(boolean enabled) {
-		SharedPreferences sharedPreferences = getSharedPreferences();
-		SharedPreferences.Editor editor = sharedPreferences.edit();
+	public static void setNotificationFilterEnabled(SharedPreferences.Editor editor, boolean enabled) {
 		editor.putBoolean("notificationfilter", enabled);
-		editor.commit();
 	}	
 
 	public static boolean isGeotriggerHandlerEnabled() {
@@ -45,10 +66,221 @@ public final class SettingsUtil {
 		return sharedPreferences.getBoolean("geotriggerhandler", false);
 	}
 
-	public static void setGeotriggerHandlerEnabled(boolean enabled) {
+	public static void setGeotriggerHandlerEnabled(SharedPreferences.Editor editor, boolean enabled) {
+		editor.putBoolean("geotriggerhandler", enabled);
+	}	
+
+	public static boolean isSentHistoryIndexPersistent() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getBoolean("sentindexpersistent", false);
+	}
+
+	public static void setSentHistoryIndexPersistent(SharedPreferences.Editor editor, boolean persistent) {
+		editor.putBoolean("sentindexpersistent", persistent);
+	}
+
+	public static boolean isDuplicateSuppressionEnabled() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getBoolean("duplicatesuppression", false);
+	}
+
+	public static void setDuplicateSuppressionEnabled(SharedPreferences.Editor editor, boolean enabled) {
+		editor.putBoolean("duplicatesuppression", enabled);
+	}
+
+	public static double getDuplicateSuppressionFalsePositiveRate() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getFloat("duplicatesuppressionfprate", 0.001f);
+	}
+
+	public static void setDuplicateSuppressionFalsePositiveRate(SharedPreferences.Editor editor, double rate) {
+		editor.putFloat("duplicatesuppressionfprate", (float) rate);
+	}
+
+	public static int getDuplicateSuppressionMemoryBudget() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getInt("duplicatesuppressionmemory", 16 * 1024);
+	}
+
+	public static void setDuplicateSuppressionMemoryBudget(SharedPreferences.Editor editor, int bytes) {
+		editor.putInt("duplicatesuppressionmemory", bytes);
+	}
+
+	public static int getDuplicateSuppressionWindow() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getInt("duplicatesuppressionwindow", 3600);
+	}
+
+	public static void setDuplicateSuppressionWindow(SharedPreferences.Editor editor, int seconds) {
+		editor.putInt("duplicatesuppressionwindow", seconds);
+	}
+
+	public static boolean isGeotriggerDecisionCacheEnabled() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getBoolean("geotriggerdecisioncache", false);
+	}
+
+	public static void setGeotriggerDecisionCacheEnabled(SharedPreferences.Editor editor, boolean enabled) {
+		editor.putBoolean("geotriggerdecisioncache", enabled);
+	}
+
+	public static int getGeotriggerDecisionCacheTtl() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getInt("geotriggerdecisioncachettl", 24 * 60 * 60);
+	}
+
+	public static void setGeotriggerDecisionCacheTtl(SharedPreferences.Editor editor, int seconds) {
+		editor.putInt("geotriggerdecisioncachettl", seconds);
+	}
+
+	public static int getGeotriggerDecisionCacheSize() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getInt("geotriggerdecisioncachesize", 256);
+	}
+
+	public static void setGeotriggerDecisionCacheSize(SharedPreferences.Editor editor, int size) {
+		editor.putInt("geotriggerdecisioncachesize", size);
+	}
+
+	public static int getMaxPendingBatches() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getInt("maxpendingbatches", 0);
+	}
+
+	public static void setMaxPendingBatches(SharedPreferences.Editor editor, int max) {
+		editor.putInt("maxpendingbatches", max);
+	}
+
+	public static OverflowPolicy getPendingBatchOverflowPolicy() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		OverflowPolicy policy = OverflowPolicy.fromName(sharedPreferences.getString("overflowpolicy", null));
+		return policy != null ? policy : OverflowPolicy.PASS_THROUGH;
+	}
+
+	public static void setPendingBatchOverflowPolicy(SharedPreferences.Editor editor, OverflowPolicy policy) {
+		editor.putString("overflowpolicy", policy.getName());
+	}
+
+	public static boolean isGeotriggerDeferredEnabled() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getBoolean("geotriggerdeferred", false);
+	}
+
+	public static void setGeotriggerDeferredEnabled(SharedPreferences.Editor editor, boolean enabled) {
+		editor.putBoolean("geotriggerdeferred", enabled);
+	}
+
+	public static boolean isGeotriggerDeferredRequireUnmetered() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getBoolean("geotriggerdeferredunmetered", false);
+	}
+
+	public static void setGeotriggerDeferredRequireUnmetered(SharedPreferences.Editor editor, boolean required) {
+		editor.putBoolean("geotriggerdeferredunmetered", required);
+	}
+
+	public static boolean isGeotriggerDeferredRequireCharging() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getBoolean("geotriggerdeferredcharging", false);
+	}
+
+	public static void setGeotriggerDeferredRequireCharging(SharedPreferences.Editor editor, boolean required) {
+		editor.putBoolean("geotriggerdeferredcharging", required);
+	}
+
+	public static int getGeotriggerDeferredMaxDelay() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getInt("geotriggerdeferredmaxdelay", 60 * 60);
+	}
+
+	public static void setGeotriggerDeferredMaxDelay(SharedPreferences.Editor editor, int seconds) {
+		editor.putInt("geotriggerdeferredmaxdelay", seconds);
+	}
+
+	public static boolean isBatchRecordingEnabled() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getBoolean("batchrecording", false);
+	}
+
+	public static void setBatchRecordingEnabled(SharedPreferences.Editor editor, boolean enabled) {
+		editor.putBoolean("batchrecording", enabled);
+	}
+
+	public static boolean isBatchRecordingAnonymized() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getBoolean("batchrecordinganonymize", true);
+	}
+
+	public static void setBatchRecordingAnonymized(SharedPreferences.Editor editor, boolean anonymized) {
+		editor.putBoolean("batchrecordinganonymize", anonymized);
+	}
+
+	public static int getBatchRecordingMaxSize() {
 		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getInt("batchrecordingmaxsize", 1024 * 1024);
+	}
+
+	public static void setBatchRecordingMaxSize(SharedPreferences.Editor editor, int bytes) {
+		editor.putInt("batchrecordingmaxsize", bytes);
+	}
+
+	public static long getBatchRecordingStart() {
+		SharedPreferences sharedPreferences = getRecorderPreferences();
+		return sharedPreferences.getLong("batchrecordingstart", 0);
+	}
+
+	public static void setBatchRecordingStart(long start) {
+		SharedPreferences sharedPreferences = getRecorderPreferences();
 		SharedPreferences.Editor editor = sharedPreferences.edit();
-		editor.putBoolean("geotriggerhandler", enabled);
+		editor.putLong("batchrecordingstart", start);
 		editor.commit();
-	}	
+	}
+
+	public static String getBatchRecordingSalt() {
+		SharedPreferences sharedPreferences = getRecorderPreferences();
+		return sharedPreferences.getString("batchrecordingsalt", null);
+	}
+
+	public static void setBatchRecordingSalt(String salt) {
+		SharedPreferences sharedPreferences = getRecorderPreferences();
+		SharedPreferences.Editor editor = sharedPreferences.edit();
+		editor.putString("batchrecordingsalt", salt);
+		editor.commit();
+	}
+
+	public static int getModuleLogLevel() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getInt("moduleloglevel", 4); // Log.INFO
+	}
+
+	public static void setModuleLogLevel(SharedPreferences.Editor editor, int level) {
+		editor.putInt("moduleloglevel", level);
+	}
+
+	public static boolean isModuleLogFileEnabled() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getBoolean("modulelogfile", false);
+	}
+
+	public static void setModuleLogFileEnabled(SharedPreferences.Editor editor, boolean enabled) {
+		editor.putBoolean("modulelogfile", enabled);
+	}
+
+	public static int getParallelMarshallingThreshold() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getInt("parallelmarshallingthreshold", 0);
+	}
+
+	public static void setParallelMarshallingThreshold(SharedPreferences.Editor editor, int threshold) {
+		editor.putInt("parallelmarshallingthreshold", threshold);
+	}
+
+	public static int getLoadedCampaignWatchInterval() {
+		SharedPreferences sharedPreferences = getSharedPreferences();
+		return sharedPreferences.getInt("loadedcampaignwatchinterval", 30);
+	}
+
+	public static void setLoadedCampaignWatchInterval(SharedPreferences.Editor editor, int interval) {
+		editor.putInt("loadedcampaignwatchinterval", interval);
+	}
 }
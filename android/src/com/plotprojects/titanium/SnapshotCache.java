@@ -0,0 +1,83 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the maps that objects of the Plot library were converted to, so converting the same object again
+ * returns the earlier map. Objects are compared by identity and only weakly referenced, an entry disappears once
+ * the library no longer uses the object. Only use it for objects that can't change, such as the loaded
+ * notifications and geotriggers.
+ *
+ * The maps are shared by every caller that converts the object, so they must not be changed.
+ */
+final class SnapshotCache<T> {
+	static final String METRIC_HITS = "snapshotCacheHits";
+	static final String METRIC_MISSES = "snapshotCacheMisses";
+
+	private final ConcurrentHashMap<IdentityReference, HashMap<String, Object>> snapshots =
+			new ConcurrentHashMap<IdentityReference, HashMap<String, Object>>();
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+	/**
+	 * Converts the items that weren't converted before with the converter, on several cores when there are enough of
+	 * them, and takes the others from the cache.
+	 */
+	@SuppressWarnings("unchecked") // generic array creation
+	HashMap<String, Object>[] convert(List<T> items, ParallelMarshaller.Converter<T> converter) {
+		purge();
+		HashMap<String, Object>[] result = new HashMap[items.size()];
+		List<T> missed = new ArrayList<T>();
+		int[] missedIndexes = new int[items.size()];
+		int i = 0;
+		for (T item : items) {
+			HashMap<String, Object> snapshot = snapshots.get(new IdentityReference(item, null));
+			if (snapshot != null) {
+				result[i] = snapshot;
+			} else {
+				missedIndexes[missed.size()] = i;
+				missed.add(item);
+			}
+			i++;
+		}
+
+		if (!missed.isEmpty()) {
+			HashMap<String, Object>[] converted = ParallelMarshaller.convert(missed, converter);
+			for (int j = 0; j < converted.length; j++) {
+				result[missedIndexes[j]] = converted[j];
+				snapshots.put(new IdentityReference(missed.get(j), collected), converted[j]);
+			}
+		}
+		ModuleMetrics.add(METRIC_HITS, result.length - missed.size());
+		ModuleMetrics.add(METRIC_MISSES, missed.size());
+		return result;
+	}
+
+	/**
+	 * Removes the entries of objects that were garbage collected.
+	 */
+	private void purge() {
+		Object reference;
+		while ((reference = collected.poll()) != null) {
+			snapshots.remove(reference);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2016 Floating Market B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.plotprojects.titanium;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Records how long each phase of initPlot took. A phase ends when the next one is marked, on whichever thread runs
+ * it, so the trace of a deferred initialization shows both the time spent in the call of the app and the time spent
+ * in the background. The trace of the latest initPlot call is kept.
+ */
+final class StartupTrace {
+	private static volatile StartupTrace latest;
+
+	private final long start = System.nanoTime();
+	private final boolean deferred;
+	private final List<Phase> phases = new ArrayList<Phase>();
+	private long phaseStart = start;
+	private long callerNanos = -1;
+	private long totalNanos = -1;
+	private String error;
+
+	private StartupTrace(boolean deferred) {
+		this.deferred = deferred;
+	}
+
+	/**
+	 * Starts the trace of an initPlot call and makes it the latest.
+	 */
+	static StartupTrace begin(boolean deferred) {
+		StartupTrace trace = new StartupTrace(deferred);
+		latest = trace;
+		return trace;
+	}
+
+	/**
+	 * @return the latest trace, or null when initPlot wasn't called in this process
+	 */
+	static StartupTrace getLatest() {
+		return latest;
+	}
+
+	/**
+	 * Ends the phase with the name, which started when the previous phase ended.
+	 */
+	synchronized void mark(String name) {
+		long now = System.nanoTime();
+		phases.add(new Phase(name, phaseStart - start, now - phaseStart, Thread.currentThread().getName()));
+		phaseStart = now;
+	}
+
+	/**
+	 * Marks the point where initPlot returns to the app.
+	 */
+	synchronized void returned() {
+		callerNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Marks the end of the initialization. The error is null when it succeeded.
+	 */
+	synchronized void finished(String error) {
+		totalNanos = System.nanoTime() - start;
+		this.error = error;
+		ModuleLog.i("initPlot took %.1f ms, of which %.1f ms in the call of the app%s", toMillis(totalNanos),
+				toMillis(callerNanos >= 0 ? callerNanos : totalNanos), error != null ? ", failed: " + error : "");
+	}
+
+	synchronized HashMap<String, Object> toMap() {
+		HashMap<String, Object> result = new HashMap<String, Object>();
+		result.put("deferred", deferred);
+		result.put("finished", totalNanos >= 0);
+		result.put("error", error);
+		result.put("callerMillis", callerNanos >= 0 ? toMillis(callerNanos) : null);
+		result.put("totalMillis", totalNanos >= 0 ? toMillis(totalNanos) : null);
+		HashMap[] jsonPhases = new HashMap[phases.size()];
+		for (int i = 0; i < jsonPhases.length; i++) {
+			Phase phase = phases.get(i);
+			HashMap<String, Object> jsonPhase = new HashMap<String, Object>();
+			jsonPhase.put("name", phase.name);
+			jsonPhase.put("startMillis", toMillis(phase.startNanos));
+			jsonPhase.put("durationMillis", toMillis(phase.durationNanos));
+			jsonPhase.put("thread", phase.thread);
+			jsonPhases[i] = jsonPhase;
+		}
+		result.put("phases", jsonPhases);
+		return result;
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	private static final class Phase {
+		private final String name;
+		private final long startNanos;
+		private final long durationNanos;
+		private final String thread;
+
+		public Phase(String name, long startNanos, long durationNanos, String thread) {
+			this.name = name;
+			this.startNanos = startNanos;
+			this.durationNanos = durationNanos;
+			this.thread = thread;
+		}
+	}
+}